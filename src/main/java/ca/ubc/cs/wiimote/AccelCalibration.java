@@ -0,0 +1,114 @@
+package ca.ubc.cs.wiimote;
+
+import java.util.Arrays;
+
+/**
+ * The accelerometer calibration of a wiimote: the raw 10 bit reading of each axis at zero
+ * and at one g. Since readings are 10 bit, every possible reading of every axis is
+ * converted once up front into a lookup table, making conversion a single array load.
+ * Instances are immutable, so a Wiimote can swap in a new one, tables included, while its
+ * receive thread is using the old one.
+ */
+public class AccelCalibration
+{
+    final static int READINGS = 1024;
+
+    final int[] zero, one;
+    //axis -> raw reading -> g
+    final double[][] table;
+
+    public AccelCalibration(int[] zero, int[] one)
+    {
+        if (zero.length != 3 || one.length != 3)
+            throw new IllegalArgumentException("calibration needs 3 axes");
+        this.zero = zero.clone();
+        this.one = one.clone();
+        table = new double[3][READINGS];
+        for (int axis = 0; axis < 3; axis++)
+            for (int raw = 0; raw < READINGS; raw++)
+                table[axis][raw] = ((double) raw - zero[axis]) / (one[axis] - zero[axis]);
+    }
+
+    /**
+     * Parses the 8 calibration bytes the wiimote reports from address 0x16.
+     */
+    static AccelCalibration parse(byte[] b, int off)
+    {
+        int[] zero = new int[3];
+        int[] one = new int[3];
+        zero[0] = ((b[off] & 0xFF) << 2) + (b[off + 3] & 3);
+        zero[1] = ((b[off + 1] & 0xFF) << 2) + ((b[off + 3] & 0xC) >> 2);
+        zero[2] = ((b[off + 2] & 0xFF) << 2) + ((b[off + 3] & 0x30) >> 4);
+
+        one[0] = ((b[off + 4] & 0xFF) << 2) + (b[off + 7] & 3);
+        one[1] = ((b[off + 5] & 0xFF) << 2) + ((b[off + 7] & 0xC) >> 2);
+        one[2] = ((b[off + 6] & 0xFF) << 2) + ((b[off + 7] & 0x30) >> 4);
+        return new AccelCalibration(zero, one);
+    }
+
+    /**
+     * Parses the form written by toString(), e.g. "512,512,512,616,616,616".
+     *
+     * @throws IllegalArgumentException if the string isn't in that form
+     */
+    static AccelCalibration valueOf(String s)
+    {
+        String[] parts = s.split(",");
+        if (parts.length != 6)
+            throw new IllegalArgumentException("bad calibration " + s);
+        int[] zero = new int[3];
+        int[] one = new int[3];
+        for (int i = 0; i < 3; i++)
+        {
+            zero[i] = Integer.parseInt(parts[i].trim());
+            one[i] = Integer.parseInt(parts[i + 3].trim());
+        }
+        return new AccelCalibration(zero, one);
+    }
+
+    /**
+     * Returns whether the calibration can be used, i.e. no axis has the same reading at
+     * zero and at one g.
+     */
+    public boolean isValid()
+    {
+        for (int i = 0; i < 3; i++)
+            if (one[i] == zero[i])
+                return false;
+        return true;
+    }
+
+    public int getZero(int axis)
+    {
+        return zero[axis];
+    }
+
+    public int getOne(int axis)
+    {
+        return one[axis];
+    }
+
+    /**
+     * Converts a raw 10 bit reading of the given axis to g.
+     */
+    public double toG(int axis, int raw)
+    {
+        return table[axis][raw & (READINGS - 1)];
+    }
+
+    public boolean equals(Object o)
+    {
+        return o instanceof AccelCalibration && Arrays.equals(zero, ((AccelCalibration) o).zero)
+                && Arrays.equals(one, ((AccelCalibration) o).one);
+    }
+
+    public int hashCode()
+    {
+        return 31 * Arrays.hashCode(zero) + Arrays.hashCode(one);
+    }
+
+    public String toString()
+    {
+        return zero[0] + "," + zero[1] + "," + zero[2] + "," + one[0] + "," + one[1] + "," + one[2];
+    }
+}
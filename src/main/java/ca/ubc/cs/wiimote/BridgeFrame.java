@@ -0,0 +1,127 @@
+package ca.ubc.cs.wiimote;
+
+/**
+ * The wire format shared by WiimoteBridgeServer and WiimoteBridgeClient. Every report a
+ * wiimote sends becomes one frame, holding all the samples decoded from it. Frames are big
+ * endian and start with a fixed header:
+ *
+ *   u16 length of the whole frame, u8 version, u8 sections,
+ *   u48 bluetooth address, u32 sequence number, i64 System.nanoTime() of the report
+ *
+ * followed by the sections flagged in sections, in this order:
+ *
+ *   BUTTONS        i32 pressed mask, of WiiButtonEvent.Button mask values
+ *   ACCEL          f32 x, y, z in g
+ *   NUNCHUK_ACCEL  f32 x, y, z in g
+ *   JOYSTICK       i16 x, y
+ *   IR             4 times u16 x, u16 y, u8 size; x and y are 1023 for a slot that isn't visible
+ *
+ * A UDP datagram holds one or more whole frames. Over TCP frames simply follow each other.
+ */
+final class BridgeFrame
+{
+    final static int VERSION = 1;
+    final static int HEADER_BYTES = 22;
+
+    final static int BUTTONS = 0x01;
+    final static int ACCEL = 0x02;
+    final static int NUNCHUK_ACCEL = 0x04;
+    final static int JOYSTICK = 0x08;
+    final static int IR = 0x10;
+
+    final static int IR_SLOT_BYTES = 5;
+    /**
+     * Size of a frame carrying every section.
+     */
+    final static int MAX_BYTES = HEADER_BYTES + 4 + 12 + 12 + 4 + 4 * IR_SLOT_BYTES;
+    /**
+     * Largest datagram sent, small enough not to be fragmented on ethernet.
+     */
+    final static int MAX_DATAGRAM = 1400;
+
+    private BridgeFrame()
+    {
+    }
+
+    /**
+     * Returns the 48 bit value of a bluetooth address such as 0019FD1A2B3C.
+     */
+    static long parseAddress(String address)
+    {
+        try
+        {
+            long value = Long.parseLong(address, 16);
+            if (value >= 0 && value <= 0xFFFFFFFFFFFFL)
+                return value;
+        } catch (NumberFormatException e)
+        {
+        }
+        throw new IllegalArgumentException("not a bluetooth address: " + address);
+    }
+
+    static String formatAddress(long address)
+    {
+        return String.format("%012X", address);
+    }
+
+    static void putShort(byte[] b, int off, int v)
+    {
+        b[off] = (byte) (v >> 8);
+        b[off + 1] = (byte) v;
+    }
+
+    static void putInt(byte[] b, int off, int v)
+    {
+        b[off] = (byte) (v >> 24);
+        b[off + 1] = (byte) (v >> 16);
+        b[off + 2] = (byte) (v >> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    static void putAddress(byte[] b, int off, long v)
+    {
+        putShort(b, off, (int) (v >> 32));
+        putInt(b, off + 2, (int) v);
+    }
+
+    static void putLong(byte[] b, int off, long v)
+    {
+        putInt(b, off, (int) (v >> 32));
+        putInt(b, off + 4, (int) v);
+    }
+
+    static void putFloat(byte[] b, int off, double v)
+    {
+        putInt(b, off, Float.floatToRawIntBits((float) v));
+    }
+
+    static int getShort(byte[] b, int off)
+    {
+        return (short) (((b[off] & 0xFF) << 8) | (b[off + 1] & 0xFF));
+    }
+
+    static int getUnsignedShort(byte[] b, int off)
+    {
+        return ((b[off] & 0xFF) << 8) | (b[off + 1] & 0xFF);
+    }
+
+    static int getInt(byte[] b, int off)
+    {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    static long getAddress(byte[] b, int off)
+    {
+        return ((long) getUnsignedShort(b, off) << 32) | (getInt(b, off + 2) & 0xFFFFFFFFL);
+    }
+
+    static long getLong(byte[] b, int off)
+    {
+        return ((long) getInt(b, off) << 32) | (getInt(b, off + 4) & 0xFFFFFFFFL);
+    }
+
+    static float getFloat(byte[] b, int off)
+    {
+        return Float.intBitsToFloat(getInt(b, off));
+    }
+}
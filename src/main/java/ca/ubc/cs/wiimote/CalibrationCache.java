@@ -0,0 +1,64 @@
+package ca.ubc.cs.wiimote;
+
+import java.io.File;
+import java.util.Properties;
+
+/**
+ * Keeps the accelerometer calibration of every wiimote seen, keyed by bluetooth address,
+ * in a file between sessions. A Wiimote loads its calibration from here when it connects,
+ * so its accelerometer output is valid from the first report instead of only after the
+ * wiimote has answered the calibration read.
+ */
+public class CalibrationCache
+{
+    static CalibrationCache defaultCache;
+
+    final protected File file;
+    final protected Properties calibrations;
+
+    public CalibrationCache(File file)
+    {
+        this.file = file;
+        calibrations = Storage.load(file);
+    }
+
+    /**
+     * Returns the cache kept in the default location, shared by all wiimotes.
+     */
+    synchronized static public CalibrationCache getDefault()
+    {
+        if (defaultCache == null)
+            defaultCache = new CalibrationCache(new File(Storage.directory(), "calibration.properties"));
+        return defaultCache;
+    }
+
+    /**
+     * Returns the cached calibration for the given address, or null if there is none.
+     */
+    public synchronized AccelCalibration get(String address)
+    {
+        String value = calibrations.getProperty(address);
+        if (value == null)
+            return null;
+        try
+        {
+            AccelCalibration calibration = AccelCalibration.valueOf(value);
+            return calibration.isValid() ? calibration : null;
+        } catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Stores the calibration for the given address, writing the file only if it changed.
+     */
+    public synchronized void put(String address, AccelCalibration calibration)
+    {
+        String value = calibration.toString();
+        if (value.equals(calibrations.getProperty(address)))
+            return;
+        calibrations.setProperty(address, value);
+        Storage.save(file, calibrations, "Wiimote accelerometer calibration by bluetooth address");
+    }
+}
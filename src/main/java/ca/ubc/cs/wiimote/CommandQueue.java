@@ -0,0 +1,322 @@
+package ca.ubc.cs.wiimote;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The outbound side of a Wiimote. Commands are queued by the caller and written to the
+ * wiimote by a single writer thread, so callers never block on the bluetooth stack. That is
+ * either a thread of the queue's own or, for wiimotes run by a WiimoteHub, whichever of the
+ * hub's shared writer threads picks the queue up while it has commands pending.
+ * State commands (LEDs and rumble) are coalesced: a state write replaces a queued write of
+ * the same command that hasn't been sent yet, and writing the state that is already queued
+ * or sent is a no-op. Commands that the wiimote acknowledges (register writes, for
+ * example) hold up the queue until their acknowledgement report arrives, and are resent if
+ * it doesn't arrive in time.
+ */
+class CommandQueue
+{
+    /**
+     * Timer shared by all wiimotes for delayed commands, such as turning rumble off.
+     */
+    final static ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    {
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "Wiimote timer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * How long to wait for an acknowledgement before resending.
+     */
+    final static long ACK_TIMEOUT_MILLIS = 250;
+    /**
+     * How often an unacknowledged command is resent before it fails.
+     */
+    final static int ACK_RETRIES = 3;
+
+    final protected Wiimote wiimote;
+    final protected LinkedList<Command> pending = new LinkedList<Command>();
+    //the most recent state command queued, used to drop redundant state writes
+    protected Command lastState;
+    protected boolean running;
+    //exactly one of writer and executor is set
+    final protected Thread writer;
+    final protected Executor executor;
+    //whether a drain of the queue is submitted to the executor or running on it
+    protected boolean scheduled;
+    //the report the writer is waiting to see acknowledged, or -1, and the result
+    protected int awaitedAck = -1;
+    protected int ackResult;
+    protected boolean acknowledged;
+
+    CommandQueue(Wiimote wiimote)
+    {
+        this(wiimote, null);
+    }
+
+    /**
+     * Creates a queue written by the given shared executor, or by a thread of its own if
+     * executor is null.
+     */
+    CommandQueue(Wiimote wiimote, Executor executor)
+    {
+        this.wiimote = wiimote;
+        this.executor = executor;
+        running = true;
+        if (executor != null)
+        {
+            writer = null;
+            return;
+        }
+        writer = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                drain();
+            }
+        }, "Wiimote writer " + wiimote.address);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a command. The returned future completes once it has been written.
+     */
+    Future<Void> send(byte command, byte[] payload)
+    {
+        return enqueue(new Command(command, payload, false));
+    }
+
+    /**
+     * Queues a command the wiimote acknowledges. The returned future completes once it
+     * has been acknowledged, or fails if it wasn't after ACK_RETRIES resends or the
+     * wiimote reported an error.
+     */
+    Future<Void> sendAcknowledged(byte command, byte[] payload)
+    {
+        return enqueue(new Command(command, payload, true));
+    }
+
+    /**
+     * Is called by the receive thread when an acknowledgement report (0x22) arrives.
+     */
+    synchronized void acknowledge(byte report, int error)
+    {
+        if (report != awaitedAck)
+            return;
+        acknowledged = true;
+        ackResult = error;
+        notifyAll();
+    }
+
+    /**
+     * Writes the command and waits for its acknowledgement. Returns false on timeout.
+     */
+    protected boolean writeAndAwaitAck(Command c) throws IOException, InterruptedException
+    {
+        synchronized (this)
+        {
+            awaitedAck = c.command;
+            acknowledged = false;
+        }
+        wiimote.writeCommand(c.command, c.payload);
+        synchronized (this)
+        {
+            long deadline = System.currentTimeMillis() + ACK_TIMEOUT_MILLIS;
+            long left;
+            while (!acknowledged && running && (left = deadline - System.currentTimeMillis()) > 0)
+                wait(left);
+            awaitedAck = -1;
+            if (acknowledged && ackResult != 0)
+                throw new IOException("wiimote reported error " + ackResult + " for command 0x" + Integer.toHexString(c.command & 0xFF));
+            return acknowledged;
+        }
+    }
+
+    /**
+     * Queues a state command, coalescing it with a pending or identical write of the same
+     * command.
+     */
+    synchronized Future<Void> sendState(byte command, byte[] payload)
+    {
+        if (lastState != null && lastState.command == command)
+        {
+            if (Arrays.equals(lastState.payload, payload))
+                return lastState.future;
+            if (!pending.isEmpty() && pending.getLast() == lastState)
+            {
+                lastState.payload = payload;
+                return lastState.future;
+            }
+        }
+        lastState = new Command(command, payload, false);
+        return enqueue(lastState);
+    }
+
+    protected synchronized Future<Void> enqueue(Command c)
+    {
+        if (!running)
+            c.future.cancel(false);
+        else
+        {
+            pending.add(c);
+            notifyAll();
+            if (executor != null && !scheduled)
+            {
+                scheduled = true;
+                executor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        drainPending();
+                    }
+                });
+            }
+        }
+        return c.future;
+    }
+
+    protected synchronized boolean isRunning()
+    {
+        return running;
+    }
+
+    /**
+     * Stops the writer. Commands that haven't been written yet are cancelled.
+     */
+    synchronized void close()
+    {
+        running = false;
+        for (Command c : pending)
+            c.future.cancel(false);
+        pending.clear();
+        notifyAll();
+    }
+
+    protected void drain()
+    {
+        while (true)
+        {
+            Command c;
+            synchronized (this)
+            {
+                while (pending.isEmpty() && running)
+                {
+                    try
+                    {
+                        wait();
+                    } catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+                if (!running)
+                    return;
+                c = pending.removeFirst();
+            }
+            write(c);
+        }
+    }
+
+    /**
+     * Writes the pending commands on the shared executor and returns once there are none
+     * left, so the executor's thread can serve other queues.
+     */
+    protected void drainPending()
+    {
+        while (true)
+        {
+            Command c;
+            synchronized (this)
+            {
+                if (pending.isEmpty() || !running)
+                {
+                    scheduled = false;
+                    return;
+                }
+                c = pending.removeFirst();
+            }
+            write(c);
+        }
+    }
+
+    protected void write(Command c)
+    {
+        c.future.run();
+        try
+        {
+            c.future.get();
+        } catch (ExecutionException e)
+        {
+            System.out.println("wiimote " + wiimote.address + " command failed: " + e.getCause());
+        } catch (Exception e)
+        {
+        }
+    }
+
+    /**
+     * Returns a future that has already completed.
+     */
+    static Future<Void> done()
+    {
+        FutureTask<Void> future = new FutureTask<Void>(new Runnable()
+        {
+            public void run()
+            {
+            }
+        }, null);
+        future.run();
+        return future;
+    }
+
+    protected class Command implements Callable<Void>
+    {
+        final byte command;
+        //only replaced while the command is still pending, guarded by the queue
+        volatile byte[] payload;
+        final boolean acknowledged;
+        final FutureTask<Void> future;
+
+        Command(byte command, byte[] payload, boolean acknowledged)
+        {
+            this.command = command;
+            this.payload = payload;
+            this.acknowledged = acknowledged;
+            future = new FutureTask<Void>(this);
+        }
+
+        public Void call() throws IOException, InterruptedException
+        {
+            if (!acknowledged)
+            {
+                wiimote.writeCommand(command, payload);
+                return null;
+            }
+            for (int attempt = 0; attempt <= ACK_RETRIES; attempt++)
+            {
+                if (writeAndAwaitAck(this))
+                    return null;
+                //closed while waiting, the connection is gone so don't resend
+                if (!isRunning())
+                {
+                    future.cancel(false);
+                    return null;
+                }
+            }
+            throw new IOException("no acknowledgement for command 0x" + Integer.toHexString(command & 0xFF));
+        }
+    }
+}
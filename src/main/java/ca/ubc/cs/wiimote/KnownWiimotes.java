@@ -0,0 +1,87 @@
+package ca.ubc.cs.wiimote;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * A persisted registry of the bluetooth addresses of wiimotes that have been connected to
+ * before. WiimoteDiscoverer.reconnectKnown() uses it to connect straight to these without
+ * an inquiry.
+ */
+public class KnownWiimotes
+{
+    final protected File file;
+    //address -> System.currentTimeMillis() of the last successful connection
+    final protected Properties addresses;
+
+    /**
+     * Loads the registry from the given file.
+     */
+    public KnownWiimotes(File file)
+    {
+        this.file = file;
+        addresses = Storage.load(file);
+    }
+
+    /**
+     * Loads the registry from its default location.
+     */
+    public KnownWiimotes()
+    {
+        this(new File(Storage.directory(), "known-wiimotes.properties"));
+    }
+
+    /**
+     * Records a successful connection to the given address and saves the registry.
+     */
+    public synchronized void add(String address)
+    {
+        addresses.setProperty(address, Long.toString(System.currentTimeMillis()));
+        Storage.save(file, addresses, "Wiimotes connected to before");
+    }
+
+    /**
+     * Forgets the given address and saves the registry.
+     */
+    public synchronized void remove(String address)
+    {
+        if (addresses.remove(address) != null)
+            Storage.save(file, addresses, "Wiimotes connected to before");
+    }
+
+    public synchronized boolean contains(String address)
+    {
+        return addresses.containsKey(address);
+    }
+
+    /**
+     * Returns the known addresses, most recently connected first.
+     */
+    public synchronized List<String> getAddresses()
+    {
+        List<String> list = new ArrayList<String>(addresses.stringPropertyNames());
+        Collections.sort(list, new Comparator<String>()
+        {
+            public int compare(String a, String b)
+            {
+                return Long.compare(lastConnected(b), lastConnected(a));
+            }
+        });
+        return list;
+    }
+
+    protected long lastConnected(String address)
+    {
+        try
+        {
+            return Long.parseLong(addresses.getProperty(address, "0"));
+        } catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package ca.ubc.cs.wiimote;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+
+/**
+ * The data reporting modes of the wiimote. Each mode is a report type that carries a fixed
+ * combination of button, accelerometer, IR and extension data. Smaller reports take less
+ * radio airtime, so it pays to use the smallest mode carrying what you need; select()
+ * picks it for you.
+ */
+//http://wiibrew.org/wiki/Wiimote#Data_Reporting
+public enum ReportingMode
+{
+    BUTTONS(0x30, true, false, IRMode.NONE, 0, 2),
+    BUTTONS_ACCEL(0x31, true, true, IRMode.NONE, 0, 5),
+    BUTTONS_EXT8(0x32, true, false, IRMode.NONE, 8, 10),
+    BUTTONS_ACCEL_IR12(0x33, true, true, IRMode.EXTENDED, 0, 17),
+    BUTTONS_EXT19(0x34, true, false, IRMode.NONE, 19, 21),
+    BUTTONS_ACCEL_EXT16(0x35, true, true, IRMode.NONE, 16, 21),
+    BUTTONS_IR10_EXT9(0x36, true, false, IRMode.BASIC, 9, 21),
+    BUTTONS_ACCEL_IR10_EXT6(0x37, true, true, IRMode.BASIC, 6, 21),
+    EXT21(0x3d, false, false, IRMode.NONE, 21, 21),
+    /**
+     * Reports 0x3e and 0x3f, sent alternately. Each carries half of the full IR data and
+     * half of the accelerometer sample.
+     */
+    INTERLEAVED(0x3e, true, true, IRMode.FULL, 0, 42);
+
+    /**
+     * Number of extension bytes the nunchuk needs.
+     */
+    final static int NUNCHUK_BYTES = 6;
+
+    /**
+     * The report id requested from the wiimote.
+     */
+    final public int report;
+    final public boolean buttons;
+    final public boolean accel;
+    final public IRMode irMode;
+    /**
+     * The number of extension controller bytes carried.
+     */
+    final public int extensionBytes;
+    /**
+     * The number of payload bytes sent per sample, not counting the report id.
+     */
+    final public int payloadBytes;
+
+    ReportingMode(int report, boolean buttons, boolean accel, IRMode irMode, int extensionBytes, int payloadBytes)
+    {
+        this.report = report;
+        this.buttons = buttons;
+        this.accel = accel;
+        this.irMode = irMode;
+        this.extensionBytes = extensionBytes;
+        this.payloadBytes = payloadBytes;
+    }
+
+    /**
+     * Returns whether this mode carries all of the given streams. A mode with a more
+     * detailed IR format also carries the less detailed ones.
+     */
+    public boolean carries(Stream... streams)
+    {
+        for (Stream s : streams)
+        {
+            switch (s)
+            {
+                case BUTTONS:
+                    if (!buttons) return false;
+                    break;
+                case ACCEL:
+                    if (!accel) return false;
+                    break;
+                case IR_BASIC:
+                    if (irMode.compareTo(IRMode.BASIC) < 0) return false;
+                    break;
+                case IR_EXTENDED:
+                    if (irMode.compareTo(IRMode.EXTENDED) < 0) return false;
+                    break;
+                case IR_FULL:
+                    if (irMode.compareTo(IRMode.FULL) < 0) return false;
+                    break;
+                case EXTENSION:
+                    if (extensionBytes < NUNCHUK_BYTES) return false;
+                    break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the smallest mode carrying all the given streams.
+     *
+     * @throws IllegalArgumentException if no mode carries them all, e.g. full IR together
+     *                                  with extension data
+     */
+    public static ReportingMode select(Stream... streams)
+    {
+        ReportingMode best = null;
+        for (ReportingMode mode : values())
+            if (mode.carries(streams) && (best == null || mode.payloadBytes < best.payloadBytes))
+                best = mode;
+        if (best == null)
+            throw new IllegalArgumentException("No reporting mode carries " + Arrays.toString(streams));
+        return best;
+    }
+
+    public static ReportingMode select(EnumSet<Stream> streams)
+    {
+        return select(streams.toArray(new Stream[streams.size()]));
+    }
+
+    /**
+     * The data a consumer can ask the wiimote to report.
+     */
+    public enum Stream
+    {
+        BUTTONS, ACCEL, IR_BASIC, IR_EXTENDED, IR_FULL, EXTENSION
+    }
+
+    /**
+     * The data formats of the IR camera, from least to most detailed.
+     */
+    public enum IRMode
+    {
+        NONE(0), BASIC(1), EXTENDED(3), FULL(5);
+
+        /**
+         * The value written to the IR camera's mode register.
+         */
+        final public int register;
+
+        IRMode(int register)
+        {
+            this.register = register;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package ca.ubc.cs.wiimote;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Reads and writes the small property files Wiimote Simple keeps between sessions. They
+ * live in ~/.wiimotesimple unless the wiimotesimple.dir system property says otherwise.
+ */
+class Storage
+{
+    static File directory()
+    {
+        String dir = System.getProperty("wiimotesimple.dir");
+        if (dir == null)
+            dir = System.getProperty("user.home") + File.separator + ".wiimotesimple";
+        return new File(dir);
+    }
+
+    /**
+     * Loads the given file. A missing or unreadable file gives empty properties.
+     */
+    static Properties load(File file)
+    {
+        Properties properties = new Properties();
+        if (!file.isFile())
+            return properties;
+        InputStream in = null;
+        try
+        {
+            in = new FileInputStream(file);
+            properties.load(in);
+        } catch (IOException e)
+        {
+            System.out.println("could not read " + file + ": " + e);
+        } finally
+        {
+            close(in);
+        }
+        return properties;
+    }
+
+    /**
+     * Saves the given properties. Failures are reported but not thrown; losing the file
+     * only costs time at the next start.
+     */
+    static void save(File file, Properties properties, String comment)
+    {
+        OutputStream out = null;
+        try
+        {
+            File parent = file.getParentFile();
+            if (parent != null)
+                parent.mkdirs();
+            //write a sibling file first so a crash can't leave a truncated file behind
+            File tmp = new File(file.getPath() + ".tmp");
+            out = new FileOutputStream(tmp);
+            properties.store(out, comment);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file))
+            {
+                file.delete();
+                if (!tmp.renameTo(file))
+                    throw new IOException("could not replace " + file);
+            }
+        } catch (IOException e)
+        {
+            System.out.println("could not write " + file + ": " + e);
+        } finally
+        {
+            close(out);
+        }
+    }
+
+    private static void close(Closeable c)
+    {
+        if (c == null)
+            return;
+        try
+        {
+            c.close();
+        } catch (IOException e)
+        {
+        }
+    }
+}
@@ -21,12 +21,20 @@
 package ca.ubc.cs.wiimote;
 
 import ca.ubc.cs.wiimote.event.*;
+import ca.ubc.cs.wiimote.filter.AccelFilter;
+import ca.ubc.cs.wiimote.filter.GravityFilter;
 
 import javax.bluetooth.L2CAPConnection;
 import javax.microedition.io.Connector;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /*
  * Represents a single wiimote that has been connected to. This will normally be
@@ -43,20 +51,87 @@ public class Wiimote
     final protected static byte COMMAND_REGISTER = 0x16;
     final protected static byte COMMAND_REPORTING = 0x12;
     final protected static byte COMMAND_READ_CALIBRATION = 0x17;
+    final protected static byte COMMAND_STATUS = 0x15;
+    final static int DEMAND_ACCEL = 0x01;
+    final static int DEMAND_NUNCHUK_ACCEL = 0x02;
+    final static int DEMAND_JOYSTICK = 0x04;
+    final static int DEMAND_IR = 0x08;
+    final static int DEMAND_ALL = 0x0F;
+    /**
+     * Consecutive failed receives after which the connection counts as dead.
+     */
+    final static int MAX_RECEIVE_FAILURES = 3;
+    final static long RECEIVE_RETRY_MILLIS = 20;
+    final static long MIN_RECONNECT_MILLIS = 500;
+    final static long MAX_RECONNECT_MILLIS = 30000;
+    /**
+     * Runs reconnect attempts, which can block for seconds while the bluetooth stack pages
+     * the wiimote.
+     */
+    final static ExecutorService reconnector = Executors.newCachedThreadPool(new ThreadFactory()
+    {
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "Wiimote reconnect");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
     static Object gate = new Object();
-    protected LinkedList<WiimoteListener> listeners;
+    //one copy-on-write array of listeners per WiiEventType, replaced as a whole on every change
+    protected volatile WiimoteListener[][] listenerTable;
+    protected volatile WiimoteRawListener[] rawListeners;
+    final protected Object listenerLock = new Object();
+    //the streams somebody consumes, a combination of the DEMAND_ bits; recomputed under
+    //listenerLock whenever a listener is added or removed
+    volatile int demand;
+    //set by the first getState call, from then on every stream is decoded for the state
+    volatile boolean stateTracked;
     protected L2CAPConnection sendCon;
     protected L2CAPConnection receiveCon;
     protected int light;
     protected Wiimote wiimote;
     protected WiiButtonEvent lastButtonEvent;
     String address;
-    boolean connectionOpen;
-    double[] calibrationZero, calibrationOne;
-    Thread commandListener;
+    final String bluetoothAddress;
+    volatile boolean connectionOpen;
+    //set by cleanup(), after which the wiimote is never reconnected
+    volatile boolean closed;
+    volatile boolean autoReconnect = true;
+    volatile long silenceTimeoutNanos = TimeUnit.SECONDS.toNanos(5);
+    //checks for silence while connected, see watch()
+    ScheduledFuture<?> watchdog;
+    final CopyOnWriteArrayList<WiimoteConnectionListener> connectionListeners = new CopyOnWriteArrayList<WiimoteConnectionListener>();
+    //null until known, either from the CalibrationCache or from the wiimote
+    volatile AccelCalibration calibration;
+    CommandListener commandListener;
+    //the hub running this wiimote's receive loop, or null if it has a thread of its own
+    final WiimoteHub hub;
+    //System.nanoTime() of the most recent report
+    volatile long lastReportTime;
+    //replaced on every reconnect
+    volatile CommandQueue commandQueue;
+    //rumble is switched off by the timer task of the latest vibrate call only
+    volatile boolean rumbling;
+    int rumbleGeneration;
+    final Object rumbleLock = new Object();
     boolean inited = false;
+    volatile ReportingMode reportingMode = ReportingMode.BUTTONS;
+    //run on every accelerometer sample of the wii remote and nunchuk, or null
+    volatile AccelFilter remoteFilter, nunchukFilter;
+    //gravity estimates attached to the accelerometer events of each source, or null
+    volatile GravityFilter remoteGravity, nunchukGravity;
+    //when set, accelerometer and IR events are mutable instances owned by this wiimote
+    volatile boolean reuseEvents = false;
+    final WiiAccelerateEvent remoteAccelEvent, nunchukAccelEvent;
+    final WiiIREvent[] irEvents;
+    final WiiIRFrameEvent irFrameEvent;
 
-    boolean buttonAState, buttonBState, button1State, button2State, button_Z_state, button_C_state;
+    //the state published after every report, read with getState
+    final WiimoteState state = new WiimoteState();
+    //WiiButtonEvent.Button masks of the buttons held down
+    volatile int buttonMask;
+    final static WiiButtonEvent.Button[] BUTTONS = WiiButtonEvent.Button.values();
 
     /**
      * Creates a Wiimote instance given an address. Forms connections to the wiimote, and
@@ -65,86 +140,587 @@ public class Wiimote
      */
     public Wiimote(String a) throws Exception
     {
-        buttonAState = buttonBState = button1State = button2State = button_Z_state = button_C_state = false; // not pressed
+        this(a, null);
+    }
+
+    /**
+     * Creates a Wiimote whose receive loop is run by the given hub instead of a thread of
+     * its own. Use WiimoteHub.connect().
+     */
+    Wiimote(String a, WiimoteHub hub) throws Exception
+    {
+        this(a, hub, true);
+    }
+
+    /**
+     * Creates a Wiimote without a connection of its own, whose reports are fed in by a
+     * WiimoteBridgeClient. Commands sent to it are cancelled.
+     */
+    static Wiimote remote(String a)
+    {
+        try
+        {
+            return new Wiimote(a, null, false);
+        } catch (Exception e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Wiimote(String a, WiimoteHub hub, boolean connect) throws Exception
+    {
+        this.hub = hub;
+        buttonMask = 0; // not pressed
         connectionOpen = false;
-        calibrationZero = new double[3];
-        calibrationOne = new double[3];
+        bluetoothAddress = a;
+
+        remoteAccelEvent = new WiiAccelerateEvent(this, 0, 0, 0);
+        remoteAccelEvent.source = WiiAccelerateEvent.EventSource.WII_REMOTE;
+        nunchukAccelEvent = new WiiAccelerateEvent(this, 0, 0, 0);
+        nunchukAccelEvent.source = WiiAccelerateEvent.EventSource.NUNCHUK;
+        irEvents = new WiiIREvent[4];
+        for (int i = 0; i < irEvents.length; i++)
+            irEvents[i] = new WiiIREvent(this, 0, 0, 0, 0);
+        irFrameEvent = new WiiIRFrameEvent(this);
 
-        listeners = new LinkedList<WiimoteListener>();
+        listenerTable = new WiimoteListener[WiiEventType.values().length][0];
+        rawListeners = new WiimoteRawListener[0];
         light = -1;
         wiimote = this;
         address = "btl2cap://" + a;
 
+        if (!connect)
+        {
+            commandQueue = new CommandQueue(this);
+            commandQueue.close();
+            commandListener = new CommandListener();
+            connectionOpen = true;
+            return;
+        }
+        calibration = CalibrationCache.getDefault().get(a);
+        openConnections();
+        startReceiving();
+        //cleaned up by a hub that was closed meanwhile
+        if (closed)
+            throw new IllegalStateException("hub is closed");
+        readCalibration();
+    }
+
+    /**
+     * Opens the receive and send connections to the wiimote.
+     */
+    private void openConnections() throws IOException
+    {
+        L2CAPConnection receive = null;
+        L2CAPConnection send = null;
         try
         {
             //these sometimes take very long to open, at least for me. This is the primary
             //reason that we need to fail elegantly should they not open.
-            receiveCon = (L2CAPConnection) Connector.open(address + ":13", Connector.READ, true);
-            sendCon = (L2CAPConnection) Connector.open(address + ":11", Connector.WRITE, true);
-            connectionOpen = true;
-        } catch (Exception e)
+            receive = (L2CAPConnection) Connector.open(address + ":13", Connector.READ, true);
+            send = (L2CAPConnection) Connector.open(address + ":11", Connector.WRITE, true);
+        } catch (IOException e)
         {
-            if (sendCon != null)
-                sendCon.close();
-            if (receiveCon != null)
-                receiveCon.close();
+            if (send != null)
+                send.close();
+            if (receive != null)
+                receive.close();
             System.out.println("Could not open. Connections reset.");
             throw e;
         }
+        receiveCon = receive;
+        sendCon = send;
+    }
+
+    /**
+     * Starts the command queue, the watchdog and the receive loop on freshly opened
+     * connections. The watchdog comes first, as the receive loop may lose the connection
+     * right away.
+     */
+    private void startReceiving()
+    {
+        commandQueue = new CommandQueue(this, hub != null ? hub.writers : null);
         commandListener = new CommandListener();
-        commandListener.start();
+        lastReportTime = System.nanoTime();
+        connectionOpen = true;
+        long period = Math.max(TimeUnit.NANOSECONDS.toMillis(silenceTimeoutNanos) / 4, 1);
+        watchdog = CommandQueue.timer.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                watch();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+        if (hub == null)
+            commandListener.start();
+        else
+            hub.attach(this);
+    }
+
+    /**
+     * Runs on the timer while connected. A wiimote only reports when something changes in
+     * some modes, so halfway through the silence timeout it is asked for a status report;
+     * if that goes unanswered too the connection is dead.
+     */
+    private void watch()
+    {
+        long silent = System.nanoTime() - lastReportTime;
+        if (silent > silenceTimeoutNanos)
+            connectionLost(receiveCon, "no report for " + TimeUnit.NANOSECONDS.toMillis(silent) + " ms");
+        else if (silent > silenceTimeoutNanos / 2)
+            sendCommand(COMMAND_STATUS, new byte[]{0x00});
+    }
+
+    /**
+     * Marks the wiimote disconnected, closes the given connection if it is still the
+     * current one, tells the connection listeners and starts reconnecting. The buttons that
+     * were held are released by the receive loop as it ends.
+     */
+    void connectionLost(L2CAPConnection con, final String reason)
+    {
+        synchronized (this)
+        {
+            if (!connectionOpen || con != receiveCon)
+                return;
+            connectionOpen = false;
+            watchdog.cancel(false);
+            commandQueue.close();
+            closeConnections();
+        }
+        System.out.println("wiimote " + address + " disconnected: " + reason);
+        CommandQueue.timer.execute(new Runnable()
+        {
+            public void run()
+            {
+                for (WiimoteConnectionListener l : connectionListeners)
+                    l.wiimoteDisconnected(Wiimote.this, reason);
+            }
+        });
+        scheduleReconnect(MIN_RECONNECT_MILLIS);
+    }
+
+    private void scheduleReconnect(final long delay)
+    {
+        if (closed || !autoReconnect)
+            return;
+        CommandQueue.timer.schedule(new Runnable()
+        {
+            public void run()
+            {
+                reconnector.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        reconnect(delay);
+                    }
+                });
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Makes one reconnect attempt, scheduling the next one with twice the delay if it
+     * fails. On success the reporting mode, lights and calibration are restored.
+     */
+    private void reconnect(long delay)
+    {
+        if (closed || !autoReconnect)
+            return;
+        try
+        {
+            openConnections();
+        } catch (Exception e)
+        {
+            scheduleReconnect(Math.min(delay * 2, MAX_RECONNECT_MILLIS));
+            return;
+        }
+        synchronized (this)
+        {
+            if (closed)
+            {
+                closeConnections();
+                return;
+            }
+            startReceiving();
+            if (closed)
+                return;
+        }
+        System.out.println("wiimote " + address + " reconnected");
+        setReportingMode(reportingMode);
+        sendLightState();
         readCalibration();
+        //on the same thread as wiimoteDisconnected, so listeners see the two in order
+        CommandQueue.timer.execute(new Runnable()
+        {
+            public void run()
+            {
+                for (WiimoteConnectionListener l : connectionListeners)
+                    l.wiimoteReconnected(Wiimote.this);
+            }
+        });
+    }
+
+    /**
+     * Returns whether the wiimote is connected. It is not while a lost connection is being
+     * reconnected, or after cleanup().
+     */
+    public boolean isConnected()
+    {
+        return connectionOpen;
+    }
+
+    /**
+     * Returns whether cleanup() was called. A closed wiimote never reports again.
+     */
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    public void addConnectionListener(WiimoteConnectionListener l)
+    {
+        connectionListeners.add(l);
+    }
+
+    public void removeConnectionListener(WiimoteConnectionListener l)
+    {
+        connectionListeners.remove(l);
+    }
+
+    /**
+     * Sets whether a lost connection is reconnected, retrying with exponentially growing
+     * delays up to MAX_RECONNECT_MILLIS. Defaults to true.
+     */
+    public void setAutoReconnect(boolean reconnect)
+    {
+        autoReconnect = reconnect;
+    }
+
+    /**
+     * Sets after how long without a report the connection counts as dead. Takes effect at
+     * the next (re)connect. Defaults to 5 seconds.
+     */
+    public void setSilenceTimeout(long millis)
+    {
+        silenceTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(millis);
     }
 
     /**
      * Attaches a WiimoteListener to this wiimote. The wiimote will send events to the
-     * given listener whenever something happens (e.g. button is pressed, accelerometer event occurs)
+     * given listener whenever something happens (e.g. button is pressed, accelerometer event occurs).
+     * Listeners can be added and removed from any thread, including from within a callback.
      */
     public void addListener(WiimoteListener l)
     {
-        if (!listeners.contains(l))
-            listeners.add(l);
+        addListener(l, new WiiEventType[0]);
     }
 
     /**
-     * Detaches the given WiimoteListener.
+     * Attaches a WiimoteListener for the given event types only. If no types are given the
+     * listener is subscribed to every type that is subscribedByDefault.
+     */
+    public void addListener(WiimoteListener l, WiiEventType... types)
+    {
+        if (types.length == 0)
+            types = defaultEventTypes();
+        synchronized (listenerLock)
+        {
+            WiimoteListener[][] table = listenerTable.clone();
+            for (WiiEventType type : types)
+            {
+                int i = type.ordinal();
+                if (indexOf(table[i], l) >= 0)
+                    continue;
+                table[i] = Arrays.copyOf(table[i], table[i].length + 1);
+                table[i][table[i].length - 1] = l;
+            }
+            listenerTable = table;
+            updateDemand();
+        }
+    }
+
+    private static WiiEventType[] defaultEventTypes()
+    {
+        WiiEventType[] types = new WiiEventType[0];
+        for (WiiEventType type : WiiEventType.values())
+            if (type.subscribedByDefault)
+            {
+                types = Arrays.copyOf(types, types.length + 1);
+                types[types.length - 1] = type;
+            }
+        return types;
+    }
+
+    /**
+     * Attaches a WiimoteListener whose callbacks run on a thread of its own, so a slow
+     * listener can't stall the receive loop. Up to capacity events are queued for it;
+     * the given policy decides what happens once it falls further behind. The returned
+     * wrapper exposes the listener's drop count.
+     */
+    public AsyncWiimoteListener addAsyncListener(WiimoteListener l, int capacity, AsyncWiimoteListener.OverflowPolicy policy, WiiEventType... types)
+    {
+        AsyncWiimoteListener async = new AsyncWiimoteListener(l, capacity, policy);
+        addListener(async, types);
+        return async;
+    }
+
+    /**
+     * Attaches and returns a ConflatingWiimoteListener. It holds only the newest accel,
+     * nunchuk and IR values until drained, while still queueing every button transition.
+     */
+    public ConflatingWiimoteListener addConflatingListener(WiiEventType... types)
+    {
+        ConflatingWiimoteListener conflating = new ConflatingWiimoteListener();
+        addListener(conflating, types);
+        return conflating;
+    }
+
+    /**
+     * Attaches and returns a DecimatingWiimoteListener around l. Set the rate of each
+     * stream l should get less often on it with setRate(); the other streams reach l
+     * unchanged.
+     */
+    public DecimatingWiimoteListener addDecimatingListener(WiimoteListener l, WiiEventType... types)
+    {
+        DecimatingWiimoteListener decimating = new DecimatingWiimoteListener(l);
+        addListener(decimating, types);
+        return decimating;
+    }
+
+    /**
+     * Returns a Flow.Publisher of this wiimote's events of the given types (the default
+     * subscription if none are given). Each subscriber has up to bufferSize accel and IR
+     * events held for it while it has no demand; button events are never dropped.
+     */
+    public WiimotePublisher publisher(int bufferSize, WiiEventType... types)
+    {
+        return new WiimotePublisher(this, bufferSize, types);
+    }
+
+    /**
+     * Detaches the given WiimoteListener, or the wrapper it was attached with by
+     * addAsyncListener or addDecimatingListener. The consumer thread of an async listener
+     * is stopped as well.
      */
     public void removeListener(WiimoteListener l)
     {
-        listeners.remove(l);
+        AsyncWiimoteListener async = null;
+        synchronized (listenerLock)
+        {
+            WiimoteListener[][] table = listenerTable.clone();
+            for (int i = 0; i < table.length; i++)
+            {
+                WiimoteListener attached = l;
+                for (WiimoteListener listener : table[i])
+                {
+                    if (listener instanceof AsyncWiimoteListener && (listener == l || ((AsyncWiimoteListener) listener).getDelegate() == l))
+                        async = (AsyncWiimoteListener) listener;
+                    else if (listener instanceof DecimatingWiimoteListener && ((DecimatingWiimoteListener) listener).getDelegate() == l)
+                        attached = listener;
+                }
+                table[i] = without(table[i], async != null ? async : attached);
+            }
+            listenerTable = table;
+            updateDemand();
+        }
+        if (async != null)
+            async.close();
+    }
+
+    /**
+     * Returns whether any WiimoteListener will receive events of the given type.
+     */
+    public boolean hasListeners(WiiEventType type)
+    {
+        return listenerTable[type.ordinal()].length != 0;
     }
 
     /**
-     * Dispatches wiimote events to all the WiimoteListeners.
+     * Attaches a WiimoteRawListener to this wiimote. Raw listeners receive decoded values
+     * directly, without any event objects being created for them.
+     */
+    public void addRawListener(WiimoteRawListener l)
+    {
+        synchronized (listenerLock)
+        {
+            WiimoteRawListener[] raw = rawListeners;
+            if (indexOf(raw, l) >= 0)
+                return;
+            raw = Arrays.copyOf(raw, raw.length + 1);
+            raw[raw.length - 1] = l;
+            rawListeners = raw;
+            updateDemand();
+        }
+    }
+
+    /**
+     * Detaches the given WiimoteRawListener.
+     */
+    public void removeRawListener(WiimoteRawListener l)
+    {
+        synchronized (listenerLock)
+        {
+            rawListeners = without(rawListeners, l);
+            updateDemand();
+        }
+    }
+
+    /**
+     * Works out which streams the decoder has to decode. Raw listeners and getState see
+     * every stream, WiimoteListeners only the event types they subscribed to. Buttons are
+     * always decoded. Is called under listenerLock.
+     */
+    private void updateDemand()
+    {
+        if (stateTracked || rawListeners.length != 0)
+        {
+            demand = DEMAND_ALL;
+            return;
+        }
+        int d = 0;
+        if (hasListeners(WiiEventType.ACCEL))
+            d |= DEMAND_ACCEL;
+        if (hasListeners(WiiEventType.NUNCHUK_ACCEL))
+            d |= DEMAND_NUNCHUK_ACCEL;
+        if (hasListeners(WiiEventType.NUNCHUK_JOYSTICK))
+            d |= DEMAND_JOYSTICK;
+        if (hasListeners(WiiEventType.IR) || hasListeners(WiiEventType.IR_FRAME))
+            d |= DEMAND_IR;
+        demand = d;
+    }
+
+    /**
+     * Makes the decoder keep every stream of the state up to date from now on.
+     */
+    private void trackState()
+    {
+        if (stateTracked)
+            return;
+        synchronized (listenerLock)
+        {
+            stateTracked = true;
+            updateDemand();
+        }
+    }
+
+    private static int indexOf(Object[] array, Object o)
+    {
+        for (int i = 0; i < array.length; i++)
+            if (array[i] == o)
+                return i;
+        return -1;
+    }
+
+    private static <T> T[] without(T[] array, Object o)
+    {
+        int i = indexOf(array, o);
+        if (i < 0)
+            return array;
+        T[] copy = Arrays.copyOf(array, array.length - 1);
+        System.arraycopy(array, i + 1, copy, i, array.length - i - 1);
+        return copy;
+    }
+
+    /**
+     * Enables or disables event reuse. When enabled, this wiimote overwrites a fixed set of
+     * WiiAccelerateEvent and WiiIREvent instances instead of creating new ones for every
+     * report. Those events are only valid for the duration of the listener callback; a
+     * listener that wants to keep one must call its copy() or detach() method.
+     */
+    public void setEventReuse(boolean reuse)
+    {
+        reuseEvents = reuse;
+    }
+
+    /**
+     * Returns whether accelerometer and IR events are reused between reports.
+     */
+    public boolean isReusingEvents()
+    {
+        return reuseEvents;
+    }
+
+    /**
+     * Dispatches wiimote events to all the WiimoteListeners. The decoder uses the typed
+     * dispatch methods below directly; this routes an event of unknown type to them.
      */
     protected void dispatchEvent(WiiEvent event)
     {
-        for (WiimoteListener listener : listeners)
+        if (event instanceof WiiButtonEvent)
+            dispatchButtonEvent((WiiButtonEvent) event);
+        else if (event instanceof WiiButtonsChangedEvent)
+            dispatchButtonsChangedEvent((WiiButtonsChangedEvent) event);
+        else if (event instanceof WiiIREvent)
+            dispatchIREvent((WiiIREvent) event);
+        else if (event instanceof WiiIRFrameEvent)
+            dispatchIRFrameEvent((WiiIRFrameEvent) event);
+        else if (event instanceof WiiAccelerateEvent)
+            dispatchAccelEvent((WiiAccelerateEvent) event);
+        else if (event instanceof WiiNunchukJoystickEvent)
+            dispatchJoystickEvent((WiiNunchukJoystickEvent) event);
+    }
+
+    protected void dispatchButtonEvent(WiiButtonEvent event)
+    {
+        WiimoteListener[] table = listenerTable[WiiEventType.BUTTON.ordinal()];
+        if (event.getWasPress())
+            for (int i = 0; i < table.length; i++)
+                table[i].wiiButtonPress(event);
+        else
+            for (int i = 0; i < table.length; i++)
+                table[i].wiiButtonRelease(event);
+    }
+
+    protected void dispatchButtonsChangedEvent(WiiButtonsChangedEvent event)
+    {
+        WiimoteListener[] table = listenerTable[WiiEventType.BUTTONS_CHANGED.ordinal()];
+        for (int i = 0; i < table.length; i++)
+            table[i].wiiButtonsChanged(event);
+    }
+
+    protected void dispatchIREvent(WiiIREvent event)
+    {
+        WiimoteListener[] table = listenerTable[WiiEventType.IR.ordinal()];
+        for (int i = 0; i < table.length; i++)
+            table[i].wiiIRInput(event);
+    }
+
+    protected void dispatchIRFrameEvent(WiiIRFrameEvent event)
+    {
+        WiimoteListener[] table = listenerTable[WiiEventType.IR_FRAME.ordinal()];
+        for (int i = 0; i < table.length; i++)
+            table[i].wiiIRFrameInput(event);
+    }
+
+    protected void dispatchAccelEvent(WiiAccelerateEvent event)
+    {
+        if (event.source == WiiAccelerateEvent.EventSource.NUNCHUK)
         {
-            if (event instanceof WiiButtonEvent)
-                if (((WiiButtonEvent) event).getWasPress())
-                    listener.wiiButtonPress((WiiButtonEvent) event);
-                else listener.wiiButtonRelease((WiiButtonEvent) event);
-            if (event instanceof WiiIREvent)
-                listener.wiiIRInput((WiiIREvent) event);
-            if (event instanceof WiiAccelerateEvent)
-                if (((WiiAccelerateEvent) event).source == WiiAccelerateEvent.EventSource.WII_REMOTE)
-                    listener.wiiAccelInput((WiiAccelerateEvent) event);
-                else if (((WiiAccelerateEvent) event).source == WiiAccelerateEvent.EventSource.NUNCHUK)
-                    listener.wiiNunchukAccelInput((WiiAccelerateEvent) event);
-            if (event instanceof WiiNunchukJoystickEvent)
-                listener.wiiNunchukJoystickInput((WiiNunchukJoystickEvent) event);
+            WiimoteListener[] table = listenerTable[WiiEventType.NUNCHUK_ACCEL.ordinal()];
+            for (int i = 0; i < table.length; i++)
+                table[i].wiiNunchukAccelInput(event);
+        } else
+        {
+            WiimoteListener[] table = listenerTable[WiiEventType.ACCEL.ordinal()];
+            for (int i = 0; i < table.length; i++)
+                table[i].wiiAccelInput(event);
         }
     }
 
+    protected void dispatchJoystickEvent(WiiNunchukJoystickEvent event)
+    {
+        WiimoteListener[] table = listenerTable[WiiEventType.NUNCHUK_JOYSTICK.ordinal()];
+        for (int i = 0; i < table.length; i++)
+            table[i].wiiNunchukJoystickInput(event);
+    }
+
     /**
      * sends the necessary commands to the wiimote to enable IR events
      */
     //http://wiibrew.org/index.php?title=Wiimote#Memory_and_Registers
     public void enableIREvents()
     {
-        sendCommand(COMMAND_REPORTING, new byte[]{0x04, 0x33});
-        initWiimote();
+        setReportingMode(ReportingMode.BUTTONS_ACCEL_IR12);
     }
 
     /**
@@ -152,38 +728,64 @@ public class Wiimote
      */
     public void enableExtensionEvents()
     {
-        sendCommand(COMMAND_REPORTING, new byte[]{0x04, 0x37});
-        initWiimote();
-        //init encryption
-        writeToRegister(0xa40040, new byte[]{0x00});
+        setReportingMode(ReportingMode.BUTTONS_ACCEL_IR10_EXT6);
     }
 
-    private void initWiimote()
+    /**
+     * Switches the wiimote to the smallest reporting mode that carries all the given streams
+     * and returns that mode. Only ask for what you use: smaller reports mean less airtime
+     * and lower latency when several wiimotes share one adapter.
+     */
+    public ReportingMode setReportingStreams(ReportingMode.Stream... streams)
     {
-        try
-        {
-            sendCommand(COMMAND_IR, new byte[]{0x04});
-            Thread.sleep(100);
-            sendCommand(COMMAND_IR_2, new byte[]{0x04});
-            Thread.sleep(100);
-
-            writeToRegister(0xb00030, new byte[]{0x08});
-            Thread.sleep(100);
-            //write sensitivity block 1
-            writeToRegister(0xb00000, new byte[]{0x00, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0x90, 0x00, (byte) 0xC0});
-            Thread.sleep(100);
-            //write sensitivity block 2
-            writeToRegister(0xb0001a, new byte[]{0x40, 0x00});
-            //write mode # (1=basic 3=extended 5=full)
-            Thread.sleep(100);
-            writeToRegister(0xb00033, new byte[]{(byte) 3});
-            Thread.sleep(100);
-            writeToRegister(0xb00030, new byte[]{0x08});
-        } catch (Exception e)
-        {
-            e.printStackTrace();
-        }
+        ReportingMode mode = ReportingMode.select(streams);
+        setReportingMode(mode);
+        return mode;
+    }
+
+    /**
+     * Switches the wiimote to the given reporting mode, setting up the IR camera and the
+     * extension as the mode requires. The setup is pipelined behind any queued commands;
+     * the returned future completes once the wiimote has acknowledged all of it.
+     */
+    public Future<Void> setReportingMode(ReportingMode mode)
+    {
+        reportingMode = mode;
+        Future<Void> done = sendCommand(COMMAND_REPORTING, new byte[]{0x04, (byte) mode.report});
+        if (mode.irMode != ReportingMode.IRMode.NONE)
+            done = initWiimote(mode.irMode);
+        if (mode.extensionBytes > 0)
+            //init encryption
+            done = writeToRegister(0xa40040, new byte[]{0x00});
+        return done;
+    }
 
+    /**
+     * Returns the reporting mode last requested from the wiimote.
+     */
+    public ReportingMode getReportingMode()
+    {
+        return reportingMode;
+    }
+
+    /**
+     * Queues the IR camera setup. Each step is sent once the wiimote has acknowledged the
+     * previous one, rather than after a fixed delay.
+     */
+    private Future<Void> initWiimote(ReportingMode.IRMode irMode)
+    {
+        //0x04 enables, 0x02 asks for an acknowledgement
+        sendAcknowledgedCommand(COMMAND_IR, new byte[]{0x06});
+        sendAcknowledgedCommand(COMMAND_IR_2, new byte[]{0x06});
+
+        writeToRegister(0xb00030, new byte[]{0x08});
+        //write sensitivity block 1
+        writeToRegister(0xb00000, new byte[]{0x00, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0x90, 0x00, (byte) 0xC0});
+        //write sensitivity block 2
+        writeToRegister(0xb0001a, new byte[]{0x40, 0x00});
+        //write mode # (1=basic 3=extended 5=full)
+        writeToRegister(0xb00033, new byte[]{(byte) irMode.register});
+        return writeToRegister(0xb00030, new byte[]{0x08});
     }
 
     /**
@@ -194,6 +796,41 @@ public class Wiimote
 
     }
 
+    /**
+     * Copies the state as of the most recent report into dst. This never blocks the
+     * receive thread and doesn't allocate, so it can be called every frame. Streams no
+     * listener subscribed to aren't decoded until the first call, so they are up to date
+     * from the report after it.
+     */
+    public void getState(WiimoteState dst)
+    {
+        trackState();
+        state.readInto(dst);
+    }
+
+    /**
+     * Returns a copy of the state as of the most recent report.
+     */
+    public WiimoteState getState()
+    {
+        WiimoteState dst = new WiimoteState();
+        getState(dst);
+        return dst;
+    }
+
+    /**
+     * Returns the WiiButtonEvent.Button masks of the buttons currently held down.
+     */
+    public int getButtonMask()
+    {
+        return buttonMask;
+    }
+
+    public boolean isPressed(WiiButtonEvent.Button button)
+    {
+        return (buttonMask & button.mask) != 0;
+    }
+
     /**
      * Returns which light is turned on on this wiimote
      */
@@ -203,43 +840,62 @@ public class Wiimote
     }
 
     /**
-     * Turns on the given light on the wiimote. Lights are indexed from 0.
+     * Turns on the given light on the wiimote. Lights are indexed from 0. The returned
+     * future completes once the wiimote has been told.
      */
-    public void setLight(int i)
+    public Future<Void> setLight(int i)
     {
         if (i < 0 || i > 3)
-            return;
+            return CommandQueue.done();
         light = i;
-        sendCommand(COMMAND_LIGHT, new byte[]{(byte) Math.pow(2, 4 + i)});
+        return sendLightState();
     }
 
     /**
-     * Causes the wiimote to vibrate for the given number of milliseconds.
+     * Causes the wiimote to vibrate for the given number of milliseconds. A later call
+     * replaces the remaining time of an earlier one. The returned future completes once
+     * the rumble has been switched on.
      */
-    public void vibrate(final int millis)
+    public Future<Void> vibrate(int millis)
     {
-        Thread thread = new Thread(new Runnable()
+        final int generation;
+        Future<Void> started;
+        synchronized (rumbleLock)
+        {
+            generation = ++rumbleGeneration;
+            rumbling = true;
+            started = sendLightState();
+        }
+        CommandQueue.timer.schedule(new Runnable()
         {
             public void run()
             {
-                sendCommand(COMMAND_LIGHT, new byte[]{(byte) (0x01 | (byte) (Math.pow(2, 4 + light)))});
-                try
-                {
-                    Thread.sleep(millis);
-                } catch (Exception e)
+                synchronized (rumbleLock)
                 {
-                    System.out.println("vibrate exception: " + e);
+                    if (generation != rumbleGeneration)
+                        return;
+                    rumbling = false;
+                    sendLightState();
                 }
-                sendCommand(COMMAND_LIGHT, new byte[]{(byte) (Math.pow(2, 4 + light))});
             }
-        });
-        thread.start();
+        }, millis, TimeUnit.MILLISECONDS);
+        return started;
+    }
+
+    /**
+     * Sends the current LED and rumble state. Redundant writes are coalesced by the queue.
+     */
+    private Future<Void> sendLightState()
+    {
+        int state = (light >= 0 ? 0x10 << light : 0) | (rumbling ? 0x01 : 0);
+        return commandQueue.sendState(COMMAND_LIGHT, new byte[]{(byte) state});
     }
 
     /**
      * Causes the given data to be written to the given register address on the wiimote.
+     * The returned future completes once the wiimote has acknowledged the write.
      */
-    private void writeToRegister(int address, byte[] data)
+    private Future<Void> writeToRegister(int address, byte[] data)
     {
         byte[] message = new byte[21];
 
@@ -254,11 +910,71 @@ public class Wiimote
         {
             message[5 + i] = data[i];
         }
-        sendCommand(COMMAND_REGISTER, message);
+        return sendAcknowledgedCommand(COMMAND_REGISTER, message);
+    }
+
+    /**
+     * Returns the bluetooth address of this wiimote.
+     */
+    public String getBluetoothAddress()
+    {
+        return bluetoothAddress;
     }
 
     /**
-     * Sends message to the wiimote asking for accelerometer calibration data.
+     * Returns the System.nanoTime() at which the most recent report was received. While a
+     * listener is called, this is the time of the report its event came from.
+     */
+    public long getLastReportTime()
+    {
+        return lastReportTime;
+    }
+
+    /**
+     * Sets the filter run on every accelerometer sample from the given source, before it
+     * reaches listeners or the state; null turns filtering off. The filter runs on the
+     * receive thread and keeps state, so give each source a filter of its own.
+     */
+    public void setAccelFilter(WiiAccelerateEvent.EventSource source, AccelFilter filter)
+    {
+        if (source == WiiAccelerateEvent.EventSource.NUNCHUK)
+            nunchukFilter = filter;
+        else
+            remoteFilter = filter;
+    }
+
+    public AccelFilter getAccelFilter(WiiAccelerateEvent.EventSource source)
+    {
+        return source == WiiAccelerateEvent.EventSource.NUNCHUK ? nunchukFilter : remoteFilter;
+    }
+
+    /**
+     * Turns on gravity/motion separation for the given source: every accelerometer event
+     * from it then carries the gravity estimate of the filter, and its pitch and roll are
+     * derived from gravity alone so shaking the wiimote doesn't disturb them. null turns
+     * it off. The estimate is updated after the AccelFilter, if any.
+     */
+    public void setGravityFilter(WiiAccelerateEvent.EventSource source, GravityFilter filter)
+    {
+        if (source == WiiAccelerateEvent.EventSource.NUNCHUK)
+            nunchukGravity = filter;
+        else
+            remoteGravity = filter;
+    }
+
+    /**
+     * Returns the accelerometer calibration in use, or null if it isn't known yet. Until
+     * it is known no accelerometer events are sent.
+     */
+    public AccelCalibration getCalibration()
+    {
+        return calibration;
+    }
+
+    /**
+     * Sends message to the wiimote asking for accelerometer calibration data. This is
+     * done at every connect, even when the calibration was cached, and the cache is
+     * updated if the wiimote reports something different.
      */
     synchronized private void readCalibration()
     {
@@ -274,9 +990,28 @@ public class Wiimote
     }
 
     /**
-     * Sends a generic command to the wiimote.
+     * Queues a generic command for the wiimote. The returned future completes once it has
+     * been written.
      */
-    synchronized private void sendCommand(byte command, byte[] payload)
+    private Future<Void> sendCommand(byte command, byte[] payload)
+    {
+        return commandQueue.send(command, payload);
+    }
+
+    /**
+     * Queues a command the wiimote answers with an acknowledgement report. The command is
+     * resent if the acknowledgement doesn't arrive in time, and later commands wait for it.
+     */
+    private Future<Void> sendAcknowledgedCommand(byte command, byte[] payload)
+    {
+        return commandQueue.sendAcknowledged(command, payload);
+    }
+
+    /**
+     * Writes a command to the wiimote. Is only called by the CommandQueue writer. The
+     * rumble bit is part of every output report, so it is added here.
+     */
+    void writeCommand(byte command, byte[] payload) throws IOException
     {
         try
         {
@@ -284,12 +1019,15 @@ public class Wiimote
             message[0] = 82;
             message[1] = command;
             System.arraycopy(payload, 0, message, 2, payload.length);
+            if (rumbling && payload.length > 0)
+                message[2] |= 0x01;
 
             sendCon.send(message);
         } catch (IOException ioexception)
         {
             ioexception.printStackTrace();
             //System.out.println("error sending data " + ioexception);
+            throw ioexception;
         }
     }
 
@@ -306,201 +1044,603 @@ public class Wiimote
      */
     public void cleanup()
     {
-        synchronized (receiveCon)
+        boolean wasClosed;
+        synchronized (this)
         {
+            wasClosed = closed;
+            closed = true;
             connectionOpen = false;
-            try
+            if (watchdog != null)
+                watchdog.cancel(false);
+            if (commandQueue != null)
+                commandQueue.close();
+            closeConnections();
+        }
+        if (wasClosed)
+            return;
+        CommandQueue.timer.execute(new Runnable()
+        {
+            public void run()
             {
-                if (sendCon != null)
-                {
-                    sendCon.close();
-                }
-                if (receiveCon != null)
-                {
-                    receiveCon.close();
-                }
-            } catch (Exception e)
+                for (WiimoteConnectionListener l : connectionListeners)
+                    l.wiimoteClosed(Wiimote.this);
+            }
+        });
+    }
+
+    private void closeConnections()
+    {
+        try
+        {
+            if (sendCon != null)
+            {
+                sendCon.close();
+            }
+            if (receiveCon != null)
             {
-                System.out.println("cleanup exception " + e);
+                receiveCon.close();
             }
+        } catch (Exception e)
+        {
+            System.out.println("cleanup exception " + e);
         }
     }
 
     /**
-     * This loops infinitely, constantly listenign for data from the wiimote. When
-     * data is received it responds accordingly.
+     * This loops until the connection is closed, constantly listenign for data from the
+     * wiimote. When data is received it responds accordingly. A single receive buffer is
+     * reused for every report and all fields are decoded straight from their offsets in it,
+     * so no allocation happens per report on this thread. When the wiimote belongs to a
+     * WiimoteHub this thread is never started; the hub calls poll() instead. After
+     * MAX_RECEIVE_FAILURES failed receives in a row the connection is given up as lost and
+     * the loop ends, releasing the buttons still held; a reconnect starts a new
+     * CommandListener.
      */
     protected class CommandListener extends Thread
     {
+        //largest input report the wiimote sends, including the 0xa1 header byte
+        final protected byte[] bytes = new byte[32];
+        //System.nanoTime() at which the report in bytes was received
+        protected long reportTime;
+        //the most recently decoded accelerometer sample
+        protected double accelX, accelY, accelZ;
+        //first half of an interleaved accelerometer sample, from report 0x3e
+        protected int interleavedAccelX, interleavedAccelZ;
+        //state of the IR frame being decoded, see beginIRFrame
+        protected WiiIRFrameEvent irFrame;
+        protected boolean irDispatch, irFrameOpen;
+        //the state as decoded so far, published to state at the end of each report
+        final protected WiimoteState current = new WiimoteState();
+        //receives that failed in a row
+        protected int failures;
+        //the demand bits read at the start of the report being decoded
+        protected int wanted;
+        //the sample handed to the accelerometer filters
+        final protected double[] filterSample = new double[3];
+        //the connection this decoder receives on; a reconnect comes with a new decoder
+        final protected L2CAPConnection con = receiveCon;
+
+        CommandListener()
+        {
+            //buttons held when the previous connection was lost stay down until released
+            current.buttonMask = buttonMask;
+        }
+
+        Wiimote getWiimote()
+        {
+            return Wiimote.this;
+        }
+
+        /**
+         * Returns whether this decoder's connection is still the wiimote's open connection
+         */
+        boolean isOpen()
+        {
+            return connectionOpen && con == receiveCon;
+        }
 
         public void run()
         {
-            while (true)
+            receive();
+            releaseButtons();
+        }
+
+        /**
+         * Receives and processes reports until the connection is closed or lost
+         */
+        protected void receive()
+        {
+            while (isOpen())
             {
-                byte[] bytes = new byte[32];
-                if (connectionOpen == true)
+                int length;
+                try
                 {
-                    try
-                    {
-                        receiveCon.receive(bytes); //this blocks until data ready
-                    } catch (IOException e)
-                    {
-                    } catch (Exception e)
-                    {
-                        System.out.println("wiimote " + receiveCon + " " + light + " exception: receive(bytes) " + e);
-                    }
-
-                    switch (bytes[1])
-                    {
-                        case 0x21: //read data
-                            parseCalibrationResponse(ByteBuffer.allocate(8).put(bytes, 7, 8));
-                            break;
-                        case 0x30: //buttons only
-                            createButtonEvent(ByteBuffer.allocate(2).put(bytes, 2, 2));
-                            break;
-                        case 0x33: //2 buttons -> 3 accel -> 12 IR
-                            createButtonEvent(ByteBuffer.allocate(2).put(bytes, 2, 2));
-                            createWiiRemoteAccelerateEvent(ByteBuffer.allocate(5).put(bytes, 2, 5));
-                            createIREvent(ByteBuffer.allocate(12).put(bytes, 7, 12));
-                            break;
-                        case 0x37: //2 buttons + 3 accel + 10 IR + 6 Extension
-                            createButtonEvent(ByteBuffer.allocate(2).put(bytes, 2, 2));
-                            createWiiRemoteAccelerateEvent(ByteBuffer.allocate(5).put(bytes, 2, 5));
-                            //IR not implemented yet
-                            createExtensionEvent(ByteBuffer.allocate(6).put(bytes, 17, 6));
-                            break;
-                    }
-                } else
+                    length = con.receive(bytes); //this blocks until data ready
+                } catch (Exception e)
                 {
+                    if (!receiveFailed(con, e))
+                        return;
                     try
                     {
-                        Thread.sleep(100);
-                    } catch (Exception e)
+                        //give a flaky link a moment instead of spinning on it
+                        Thread.sleep(RECEIVE_RETRY_MILLIS * failures);
+                    } catch (InterruptedException ie)
                     {
-                        e.printStackTrace();
+                        return;
                     }
+                    continue;
                 }
+                failures = 0;
+                processReport(length);
             }
         }
 
         /**
-         * When a response to an accelerometer calibration request is received this
-         * parses it.
+         * Receives and processes a report if one is waiting, without blocking. Returns
+         * whether there was one.
          */
-        protected void parseCalibrationResponse(ByteBuffer b)
+        protected boolean poll()
         {
-            calibrationZero[0] = ((b.get(0) & 0xFF) << 2) + (b.get(3) & 3);
-            calibrationZero[1] = ((b.get(1) & 0xFF) << 2) + ((b.get(3) & 0xC) >> 2);
-            calibrationZero[2] = ((b.get(2) & 0xFF) << 2) + ((b.get(3) & 0x30) >> 4);
+            try
+            {
+                if (!isOpen() || !con.ready())
+                    return false;
+                processReport(con.receive(bytes));
+            } catch (IOException e)
+            {
+                receiveFailed(con, e);
+                return false;
+            }
+            failures = 0;
+            return true;
+        }
 
-            calibrationOne[0] = ((b.get(4) & 0xFF) << 2) + (b.get(7) & 3);
-            calibrationOne[1] = ((b.get(5) & 0xFF) << 2) + ((b.get(7) & 0xC) >> 2);
-            calibrationOne[2] = ((b.get(6) & 0xFF) << 2) + ((b.get(7) & 0x30) >> 4);
+        /**
+         * Counts a failed receive on the given connection, and gives the connection up as
+         * lost after MAX_RECEIVE_FAILURES in a row. Returns whether to keep receiving.
+         */
+        protected boolean receiveFailed(L2CAPConnection con, Exception e)
+        {
+            //closed under us, by cleanup() or the watchdog
+            if (!connectionOpen || con != receiveCon)
+                return false;
+            if (++failures < MAX_RECEIVE_FAILURES)
+                return true;
+            connectionLost(con, "receive failed: " + e);
+            return false;
         }
 
         /**
-         * Creates a WiiButtonEvent from raw data
+         * Decodes the report of the given length held in bytes
          */
-        protected void createButtonEvent(ByteBuffer b)
+        protected void processReport(int length)
         {
-            int i = (b.get(0) << 8) | b.get(1);
-            if ((i & 8) == 0 == buttonAState)
-            {
-                buttonAState = !buttonAState;
-                WiiButtonEvent event = new WiiButtonEvent(wiimote, WiiButtonEvent.Button.B_A, buttonAState);
-                wiimote.dispatchEvent(event);
-            }
-            if ((i & 4) == 0 == buttonBState)
-            {
-                buttonBState = !buttonBState;
-                WiiButtonEvent event = new WiiButtonEvent(wiimote, WiiButtonEvent.Button.B_B, buttonBState);
-                wiimote.dispatchEvent(event);
-            }
-            if ((i & 2) == 0 == button1State)
+            //the buffer still holds the previous report if nothing was received
+            if (length < 2)
+                return;
+            beginReport(System.nanoTime());
+
+            switch (bytes[1])
             {
-                button1State = !button1State;
-                WiiButtonEvent event = new WiiButtonEvent(wiimote, WiiButtonEvent.Button.B_1, button1State);
-                wiimote.dispatchEvent(event);
+                case 0x20: //status, 2 buttons + flags, sent when asked for by the watchdog
+                    createButtonEvent(bytes, 2);
+                    break;
+                case 0x21: //read data
+                    parseCalibrationResponse(bytes, 7);
+                    break;
+                case 0x22: //2 buttons + acknowledged report + error code
+                    createButtonEvent(bytes, 2);
+                    commandQueue.acknowledge(bytes[4], bytes[5] & 0xFF);
+                    break;
+                case 0x30: //buttons only
+                    createButtonEvent(bytes, 2);
+                    break;
+                case 0x31: //2 buttons + 3 accel
+                    createButtonEvent(bytes, 2);
+                    createWiiRemoteAccelerateEvent(bytes, 2);
+                    break;
+                case 0x32: //2 buttons + 8 extension
+                case 0x34: //2 buttons + 19 extension
+                    createButtonEvent(bytes, 2);
+                    createExtensionEvent(bytes, 4);
+                    break;
+                case 0x33: //2 buttons -> 3 accel -> 12 IR
+                    createButtonEvent(bytes, 2);
+                    createWiiRemoteAccelerateEvent(bytes, 2);
+                    createIREvent(bytes, 7, 12);
+                    break;
+                case 0x35: //2 buttons + 3 accel + 16 extension
+                    createButtonEvent(bytes, 2);
+                    createWiiRemoteAccelerateEvent(bytes, 2);
+                    createExtensionEvent(bytes, 7);
+                    break;
+                case 0x36: //2 buttons + 10 IR + 9 extension
+                    createButtonEvent(bytes, 2);
+                    createBasicIREvent(bytes, 4);
+                    createExtensionEvent(bytes, 14);
+                    break;
+                case 0x37: //2 buttons + 3 accel + 10 IR + 6 Extension
+                    createButtonEvent(bytes, 2);
+                    createWiiRemoteAccelerateEvent(bytes, 2);
+                    createBasicIREvent(bytes, 7);
+                    createExtensionEvent(bytes, 17);
+                    break;
+                case 0x3d: //21 extension
+                    createExtensionEvent(bytes, 2);
+                    break;
+                case 0x3e: //2 buttons + half accel + full IR for slots 0 and 1
+                    createButtonEvent(bytes, 2);
+                    //cheap enough to always keep
+                    interleavedAccelX = (bytes[4] & 0xFF) << 2;
+                    interleavedAccelZ = ((bytes[3] & 0x60) << 1) | ((bytes[2] & 0x60) >> 1);
+                    createFullIREvent(bytes, 5, 0);
+                    break;
+                case 0x3f: //2 buttons + half accel + full IR for slots 2 and 3
+                    createButtonEvent(bytes, 2);
+                    int z = interleavedAccelZ | ((bytes[3] & 0x60) >> 3) | ((bytes[2] & 0x60) >> 5);
+                    if ((wanted & DEMAND_ACCEL) != 0 && calibrateAccel(interleavedAccelX, (bytes[4] & 0xFF) << 2, z << 2))
+                        dispatchWiiRemoteAccelerateEvent();
+                    createFullIREvent(bytes, 5, 2);
+                    break;
             }
-            if ((i & 1) == 0 == button2State)
+            endReport();
+        }
+
+        /**
+         * Starts decoding a report received at the given System.nanoTime()
+         */
+        protected void beginReport(long time)
+        {
+            wanted = demand;
+            reportTime = time;
+            lastReportTime = time;
+            current.timestamp = time;
+        }
+
+        /**
+         * Publishes the state decoded from the report and tells raw listeners it is done
+         */
+        protected void endReport()
+        {
+            state.publish(current);
+            WiimoteRawListener[] raw = rawListeners;
+            for (int i = 0; i < raw.length; i++)
+                raw[i].onReportEnd(wiimote, reportTime);
+        }
+
+        /**
+         * When a response to an accelerometer calibration request is received this
+         * parses the 8 calibration bytes starting at the given offset. A calibration that
+         * differs from the one in use replaces it and is written to the CalibrationCache.
+         */
+        protected void parseCalibrationResponse(byte[] b, int off)
+        {
+            final AccelCalibration parsed = AccelCalibration.parse(b, off);
+            if (!parsed.isValid() || parsed.equals(calibration))
+                return;
+            calibration = parsed;
+            //keep file access off the receive thread
+            CommandQueue.timer.execute(new Runnable()
             {
-                button2State = !button2State;
-                WiiButtonEvent event = new WiiButtonEvent(wiimote, WiiButtonEvent.Button.B_2, button2State);
-                wiimote.dispatchEvent(event);
-            }
+                public void run()
+                {
+                    CalibrationCache.getDefault().put(bluetoothAddress, parsed);
+                }
+            });
+        }
+
+        /**
+         * Creates button events from the 2 core button bytes at the given offset
+         */
+        protected void createButtonEvent(byte[] b, int off)
+        {
+            int core = (((b[off] & 0xFF) << 8) | (b[off + 1] & 0xFF)) & WiiButtonEvent.Button.CORE_MASK;
+            updateButtons((buttonMask & ~WiiButtonEvent.Button.CORE_MASK) | core);
+        }
+
+        /**
+         * Finds the buttons that changed by comparing the new mask with the previous one,
+         * and dispatches them: to raw listeners as masks, to BUTTONS_CHANGED listeners as one
+         * event and to BUTTON listeners as one event per button.
+         */
+        protected void updateButtons(int pressed)
+        {
+            int changed = pressed ^ buttonMask;
+            if (changed == 0)
+                return;
+            buttonMask = pressed;
+            current.buttonMask = pressed;
+            WiimoteRawListener[] raw = rawListeners;
+            for (int i = 0; i < raw.length; i++)
+                raw[i].onButtons(wiimote, pressed, changed);
+            if (hasListeners(WiiEventType.BUTTONS_CHANGED))
+                wiimote.dispatchButtonsChangedEvent(new WiiButtonsChangedEvent(wiimote, pressed, changed));
+            if (hasListeners(WiiEventType.BUTTON))
+                for (WiiButtonEvent.Button button : BUTTONS)
+                    if ((changed & button.mask) != 0)
+                        wiimote.dispatchButtonEvent(new WiiButtonEvent(wiimote, button, (pressed & button.mask) != 0));
+        }
+
+        /**
+         * Dispatches a release of every button held, as a report of its own, once the
+         * connection has ended. Is called on the thread that received the connection's
+         * reports. Left to the next decoder if the wiimote has reconnected meanwhile, as
+         * that one starts out with the buttons held.
+         */
+        protected void releaseButtons()
+        {
+            if (buttonMask == 0 || con != receiveCon)
+                return;
+            beginReport(System.nanoTime());
+            updateButtons(0);
+            endReport();
         }
 
         /**
-         * Creates a WiiAccelerateEvent from raw data
+         * Creates a WiiAccelerateEvent from the 5 button/accel bytes at the given offset
          */
-        protected void createWiiRemoteAccelerateEvent(ByteBuffer b)
+        protected void createWiiRemoteAccelerateEvent(byte[] b, int off)
         {
-            WiiAccelerateEvent event = createGenericAccelerateEvent(b);
-            event.source = WiiAccelerateEvent.EventSource.WII_REMOTE;
-            wiimote.dispatchEvent(event);
+            if ((wanted & DEMAND_ACCEL) != 0 && decodeAccel(b, off))
+                dispatchWiiRemoteAccelerateEvent();
         }
 
-        protected WiiAccelerateEvent createGenericAccelerateEvent(ByteBuffer b)
+        protected void dispatchWiiRemoteAccelerateEvent()
         {
-            int x = ((b.get(2) & 0xff) << 2) + ((b.get(0) & 0x60) >> 5);
-            int y = ((b.get(3) & 0xff) << 2) + ((b.get(1) & 0x60) >> 5);
-            int z = ((b.get(4) & 0xff) << 2) + ((b.get(1) & 0x80) >> 6);
+            filterAccel(remoteFilter);
+            GravityFilter gravity = remoteGravity;
+            if (gravity != null)
+                gravity.update(accelX, accelY, accelZ, reportTime);
+            current.accelX = accelX;
+            current.accelY = accelY;
+            current.accelZ = accelZ;
+            WiimoteRawListener[] raw = rawListeners;
+            for (int i = 0; i < raw.length; i++)
+                raw[i].onAccel(wiimote, WiimoteRawListener.SOURCE_WII_REMOTE, accelX, accelY, accelZ, reportTime);
+            if (hasListeners(WiiEventType.ACCEL))
+                wiimote.dispatchAccelEvent(createGenericAccelerateEvent(WiiAccelerateEvent.EventSource.WII_REMOTE));
+        }
 
-            double xAccel = ((double) x - calibrationZero[0]) / (calibrationOne[0] - calibrationZero[0]);
-            double yAccel = ((double) y - calibrationZero[1]) / (calibrationOne[1] - calibrationZero[1]);
-            double zAccel = ((double) z - calibrationZero[2]) / (calibrationOne[2] - calibrationZero[2]);
+        /**
+         * Runs accelX, accelY and accelZ through the given filter, if any
+         */
+        protected void filterAccel(AccelFilter filter)
+        {
+            if (filter == null)
+                return;
+            filterSample[0] = accelX;
+            filterSample[1] = accelY;
+            filterSample[2] = accelZ;
+            filter.apply(filterSample, reportTime);
+            accelX = filterSample[0];
+            accelY = filterSample[1];
+            accelZ = filterSample[2];
+        }
+
+        /**
+         * Decodes and calibrates the accelerometer sample at the given offset into
+         * accelX, accelY and accelZ. Returns false if there is no calibration yet.
+         */
+        protected boolean decodeAccel(byte[] b, int off)
+        {
+            int x = ((b[off + 2] & 0xff) << 2) + ((b[off] & 0x60) >> 5);
+            int y = ((b[off + 3] & 0xff) << 2) + ((b[off + 1] & 0x60) >> 5);
+            int z = ((b[off + 4] & 0xff) << 2) + ((b[off + 1] & 0x80) >> 6);
+            return calibrateAccel(x, y, z);
+        }
+
+        /**
+         * Calibrates the given 10 bit accelerometer values into accelX, accelY and accelZ.
+         * Returns false if there is no calibration yet.
+         */
+        protected boolean calibrateAccel(int x, int y, int z)
+        {
+            AccelCalibration c = calibration;
+            if (c == null)
+                return false;
+            accelX = c.table[0][x];
+            accelY = c.table[1][y];
+            accelZ = c.table[2][z];
+            return true;
+        }
 
-            return new WiiAccelerateEvent(wiimote, xAccel, yAccel, zAccel);
+        /**
+         * Creates a WiiAccelerateEvent from the most recently decoded sample
+         */
+        protected WiiAccelerateEvent createGenericAccelerateEvent(WiiAccelerateEvent.EventSource source)
+        {
+            WiiAccelerateEvent event;
+            if (reuseEvents)
+            {
+                event = source == WiiAccelerateEvent.EventSource.NUNCHUK ? nunchukAccelEvent : remoteAccelEvent;
+                event.set(accelX, accelY, accelZ);
+            } else
+            {
+                event = new WiiAccelerateEvent(wiimote, accelX, accelY, accelZ);
+                event.source = source;
+            }
+            GravityFilter gravity = source == WiiAccelerateEvent.EventSource.NUNCHUK ? nunchukGravity : remoteGravity;
+            if (gravity != null)
+                event.setGravity(gravity.getX(), gravity.getY(), gravity.getZ());
+            return event;
         }
 
         /**
-         * Creates a WiiIREvent from raw data
+         * Creates WiiIREvents, and a WiiIRFrameEvent if anyone subscribed to it, from the
+         * extended mode IR bytes at the given offset
          */
-        protected void createIREvent(ByteBuffer b)
+        protected void createIREvent(byte[] b, int off, int length)
         {
-            for (int i = 0; i < b.limit(); i += 3)
+            if ((wanted & DEMAND_IR) == 0)
+                return;
+            beginIRFrame();
+            for (int i = 0; i < length; i += 3)
             {
-                int x = (b.get(i) & 0xFF) + ((b.get(i + 2) & 0x30) << 4);
-                int y = (b.get(i + 1) & 0xFF) + ((b.get(i + 2) & 0xc0) << 2);
-                int size = (b.get(i + 2) & 0xF);
-                if (x != 1023 && y != 1023)
-                {
-                    WiiIREvent event = new WiiIREvent(wiimote, i, x, y, size);
-                    wiimote.dispatchEvent(event);
-                }
+                int x = (b[off + i] & 0xFF) + ((b[off + i + 2] & 0x30) << 4);
+                int y = (b[off + i + 1] & 0xFF) + ((b[off + i + 2] & 0xc0) << 2);
+                int size = (b[off + i + 2] & 0xF);
+                decodeIRSlot(i / 3, x, y, size);
+            }
+            endIRFrame();
+        }
+
+        /**
+         * Creates IR events from the 10 basic mode IR bytes at the given offset. Basic mode
+         * packs two light sources into every 5 bytes and carries no size.
+         */
+        protected void createBasicIREvent(byte[] b, int off)
+        {
+            if ((wanted & DEMAND_IR) == 0)
+                return;
+            beginIRFrame();
+            for (int i = 0; i < 10; i += 5)
+            {
+                int bits = b[off + i + 2] & 0xFF;
+                int x1 = (b[off + i] & 0xFF) + ((bits & 0x30) << 4);
+                int y1 = (b[off + i + 1] & 0xFF) + ((bits & 0xc0) << 2);
+                int x2 = (b[off + i + 3] & 0xFF) + ((bits & 0x03) << 8);
+                int y2 = (b[off + i + 4] & 0xFF) + ((bits & 0x0c) << 6);
+                decodeIRSlot(i / 5 * 2, x1, y1, 0);
+                decodeIRSlot(i / 5 * 2 + 1, x2, y2, 0);
             }
+            endIRFrame();
         }
 
-        protected void createExtensionEvent(ByteBuffer b)
+        /**
+         * Creates IR events from the 18 full mode IR bytes at the given offset, which hold
+         * two light sources starting with firstSlot. The frame is completed by the report
+         * holding slots 2 and 3.
+         */
+        protected void createFullIREvent(byte[] b, int off, int firstSlot)
         {
-            for (int i = 0; i < b.capacity(); i++)
+            if ((wanted & DEMAND_IR) == 0)
+            {
+                irFrameOpen = false;
+                return;
+            }
+            if (firstSlot == 0 || !irFrameOpen)
+                beginIRFrame();
+            for (int i = 0; i < 18; i += 9)
             {
-                b.put(i, (byte) ((b.get(i) ^ 0x17) + 0x17));
+                //the first 3 bytes of a full mode slot are laid out as in extended mode
+                int x = (b[off + i] & 0xFF) + ((b[off + i + 2] & 0x30) << 4);
+                int y = (b[off + i + 1] & 0xFF) + ((b[off + i + 2] & 0xc0) << 2);
+                int size = (b[off + i + 2] & 0xF);
+                decodeIRSlot(firstSlot + i / 9, x, y, size);
             }
-            createNunchukAccelEvent(b);
-            WiiNunchukJoystickEvent je = new WiiNunchukJoystickEvent(wiimote, (b.get(0) & 0xFF) - 130, (b.get(1) & 0xFF) - 130);
-            wiimote.dispatchEvent(je);
-            //detects Z button state change
-            if (((b.get(5) & 0x01) == 0) != button_Z_state)
+            if (firstSlot != 0)
+                endIRFrame();
+        }
+
+        protected void beginIRFrame()
+        {
+            irDispatch = hasListeners(WiiEventType.IR);
+            irFrame = null;
+            if (hasListeners(WiiEventType.IR_FRAME))
+                irFrame = reuseEvents ? irFrameEvent : new WiiIRFrameEvent(wiimote);
+            irFrameOpen = true;
+        }
+
+        /**
+         * Dispatches one decoded IR light source and adds it to the current frame
+         */
+        protected void decodeIRSlot(int slot, int x, int y, int size)
+        {
+            boolean visible = x != 1023 && y != 1023;
+            current.irX[slot] = x;
+            current.irY[slot] = y;
+            current.irSize[slot] = size;
+            if (visible)
+                current.irVisibleMask |= 1 << slot;
+            else
+                current.irVisibleMask &= ~(1 << slot);
+            if (irFrame != null)
+                irFrame.setSlot(slot, visible, x, y, size);
+            if (!visible)
+                return;
+            WiimoteRawListener[] raw = rawListeners;
+            for (int l = 0; l < raw.length; l++)
+                raw[l].onIR(wiimote, slot, x, y, size);
+            if (!irDispatch)
+                return;
+            WiiIREvent event;
+            if (reuseEvents)
             {
-                button_Z_state = !button_Z_state;
-                WiiButtonEvent event = new WiiButtonEvent(wiimote, WiiButtonEvent.Button.B_Z, button_Z_state);
-                wiimote.dispatchEvent(event);
+                event = irEvents[slot];
+                event.set(slot, x, y, size);
+            } else
+                event = new WiiIREvent(wiimote, slot, x, y, size);
+            wiimote.dispatchIREvent(event);
+        }
+
+        protected void endIRFrame()
+        {
+            if (irFrame != null)
+            {
+                irFrame.setTimestamp(reportTime);
+                wiimote.dispatchIRFrameEvent(irFrame);
+                irFrame = null;
             }
-            //detects C button state change
-            if (((b.get(5) & 0x02) == 0) != button_C_state)
+            irFrameOpen = false;
+        }
+
+        /**
+         * Decrypts the 6 nunchuk bytes at the given offset in place and creates the
+         * nunchuk events from them. Reports carrying more extension bytes only have the
+         * first 6 decoded. If nobody consumes the nunchuk accel or joystick only the
+         * button byte is decrypted.
+         */
+        protected void createExtensionEvent(byte[] b, int off)
+        {
+            boolean streams = (wanted & (DEMAND_NUNCHUK_ACCEL | DEMAND_JOYSTICK)) != 0;
+            for (int i = streams ? off : off + 5; i < off + 6; i++)
             {
-                button_C_state = !button_C_state;
-                WiiButtonEvent event = new WiiButtonEvent(wiimote, WiiButtonEvent.Button.B_C, button_C_state);
-                wiimote.dispatchEvent(event);
+                b[i] = (byte) ((b[i] ^ 0x17) + 0x17);
             }
+            if ((wanted & DEMAND_NUNCHUK_ACCEL) != 0)
+                createNunchukAccelEvent(b, off);
+            if ((wanted & DEMAND_JOYSTICK) != 0)
+                dispatchJoystick((b[off] & 0xFF) - 130, (b[off + 1] & 0xFF) - 130);
+            //the nunchuk buttons are active low
+            int nunchuk = 0;
+            if ((b[off + 5] & 0x01) == 0)
+                nunchuk |= WiiButtonEvent.Button.B_Z.mask;
+            if ((b[off + 5] & 0x02) == 0)
+                nunchuk |= WiiButtonEvent.Button.B_C.mask;
+            updateButtons((buttonMask & ~WiiButtonEvent.Button.NUNCHUK_MASK) | nunchuk);
+        }
+
+        protected void dispatchJoystick(int joystickX, int joystickY)
+        {
+            current.joystickX = joystickX;
+            current.joystickY = joystickY;
+            WiimoteRawListener[] raw = rawListeners;
+            for (int i = 0; i < raw.length; i++)
+                raw[i].onNunchukJoystick(wiimote, joystickX, joystickY);
+            if (hasListeners(WiiEventType.NUNCHUK_JOYSTICK))
+                wiimote.dispatchJoystickEvent(new WiiNunchukJoystickEvent(wiimote, joystickX, joystickY));
+        }
+
+        protected void createNunchukAccelEvent(byte[] b, int off)
+        {
+            if (decodeAccel(b, off))
+                dispatchNunchukAccelerateEvent();
         }
 
-        protected void createNunchukAccelEvent(ByteBuffer b)
+        protected void dispatchNunchukAccelerateEvent()
         {
-            WiiAccelerateEvent event = createGenericAccelerateEvent(b);
-            event.source = WiiAccelerateEvent.EventSource.NUNCHUK;
-            wiimote.dispatchEvent(event);
+            filterAccel(nunchukFilter);
+            GravityFilter gravity = nunchukGravity;
+            if (gravity != null)
+                gravity.update(accelX, accelY, accelZ, reportTime);
+            current.nunchukAccelX = accelX;
+            current.nunchukAccelY = accelY;
+            current.nunchukAccelZ = accelZ;
+            WiimoteRawListener[] raw = rawListeners;
+            for (int i = 0; i < raw.length; i++)
+                raw[i].onAccel(wiimote, WiimoteRawListener.SOURCE_NUNCHUK, accelX, accelY, accelZ, reportTime);
+            if (hasListeners(WiiEventType.NUNCHUK_ACCEL))
+                wiimote.dispatchAccelEvent(createGenericAccelerateEvent(WiiAccelerateEvent.EventSource.NUNCHUK));
         }
     }
-}
+}
\ No newline at end of file
@@ -0,0 +1,303 @@
+package ca.ubc.cs.wiimote;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Receives the stream of a WiimoteBridgeServer and re-exposes the wiimotes in it as local
+ * Wiimote instances, so listeners are attached to them exactly as to a connected wiimote.
+ * A Wiimote is created the first time a frame from its bluetooth address arrives, and
+ * WiimoteDiscoveryListeners are told about it then. Events are dispatched on the client's
+ * receive thread. Commands sent to these wiimotes (lights, rumble, reporting modes) are
+ * cancelled, as they have to be sent on the machine the wiimote is connected to.
+ */
+public class WiimoteBridgeClient
+{
+    /**
+     * How far behind the expected sequence number a frame may be and still count as
+     * reordered. Anything older means the server restarted its count.
+     */
+    final static int MAX_REORDER_FRAMES = 64;
+
+    //exactly one of udp and tcp is set
+    final protected DatagramSocket udp;
+    final protected Socket tcp;
+    final protected CopyOnWriteArrayList<WiimoteDiscoveryListener> listeners = new CopyOnWriteArrayList<WiimoteDiscoveryListener>();
+    final protected CopyOnWriteArrayList<Wiimote> wiimotes = new CopyOnWriteArrayList<Wiimote>();
+    //only used by the receive thread; a handful of wiimotes, so searched linearly
+    protected Remote[] remotes = new Remote[0];
+    protected volatile boolean running;
+    final protected Thread receiver;
+
+    //only written by the receive thread
+    protected volatile long framesReceived, framesLost, bytesReceived;
+
+    /**
+     * Creates a client receiving datagrams on the given port. Port 0 picks a free port,
+     * see getPort().
+     */
+    public static WiimoteBridgeClient udp(int port) throws IOException
+    {
+        return new WiimoteBridgeClient(new DatagramSocket(port), null);
+    }
+
+    /**
+     * Creates a client connected to a TCP WiimoteBridgeServer.
+     */
+    public static WiimoteBridgeClient tcp(String host, int port) throws IOException
+    {
+        Socket socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        return new WiimoteBridgeClient(null, socket);
+    }
+
+    protected WiimoteBridgeClient(DatagramSocket udp, Socket tcp)
+    {
+        this.udp = udp;
+        this.tcp = tcp;
+        running = true;
+        receiver = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    if (WiimoteBridgeClient.this.udp != null)
+                        receiveDatagrams();
+                    else
+                        receiveStream();
+                } catch (EOFException e)
+                {
+                    System.out.println("wiimote bridge server closed the connection");
+                } catch (IOException e)
+                {
+                    if (running)
+                        System.out.println("wiimote bridge receive failed: " + e);
+                }
+                close();
+            }
+        }, "WiimoteBridgeClient receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    public void addWiimoteDiscoveryListener(WiimoteDiscoveryListener l)
+    {
+        listeners.add(l);
+    }
+
+    public void removeWiimoteDiscoveryListener(WiimoteDiscoveryListener l)
+    {
+        listeners.remove(l);
+    }
+
+    /**
+     * Returns the wiimotes seen so far.
+     */
+    public List<Wiimote> getWiimotes()
+    {
+        return new ArrayList<Wiimote>(wiimotes);
+    }
+
+    /**
+     * Returns the local port the client receives on.
+     */
+    public int getPort()
+    {
+        return udp != null ? udp.getLocalPort() : tcp.getLocalPort();
+    }
+
+    public long getFramesReceived()
+    {
+        return framesReceived;
+    }
+
+    /**
+     * Returns how many frames were missed, going by gaps in their sequence numbers. Only
+     * UDP loses frames.
+     */
+    public long getFramesLost()
+    {
+        return framesLost;
+    }
+
+    public long getBytesReceived()
+    {
+        return bytesReceived;
+    }
+
+    /**
+     * Stops receiving and marks all the wiimotes of this client closed.
+     */
+    public void close()
+    {
+        running = false;
+        if (udp != null)
+            udp.close();
+        try
+        {
+            if (tcp != null)
+                tcp.close();
+        } catch (IOException e)
+        {
+        }
+        for (Wiimote wiimote : wiimotes)
+            wiimote.cleanup();
+    }
+
+    protected void receiveDatagrams() throws IOException
+    {
+        byte[] buffer = new byte[65536];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (running)
+        {
+            packet.setLength(buffer.length);
+            udp.receive(packet);
+            int length = packet.getLength();
+            bytesReceived += length;
+            for (int off = 0; off + BridgeFrame.HEADER_BYTES <= length; )
+            {
+                int frameLength = BridgeFrame.getUnsignedShort(buffer, off);
+                if (frameLength < BridgeFrame.HEADER_BYTES || off + frameLength > length)
+                    break;
+                decode(buffer, off);
+                off += frameLength;
+            }
+        }
+    }
+
+    protected void receiveStream() throws IOException
+    {
+        DataInputStream in = new DataInputStream(tcp.getInputStream());
+        byte[] buffer = new byte[65536];
+        while (running)
+        {
+            in.readFully(buffer, 0, 2);
+            int frameLength = BridgeFrame.getUnsignedShort(buffer, 0);
+            if (frameLength < BridgeFrame.HEADER_BYTES)
+                throw new IOException("corrupt frame of length " + frameLength);
+            in.readFully(buffer, 2, frameLength - 2);
+            bytesReceived += frameLength;
+            decode(buffer, 0);
+        }
+    }
+
+    /**
+     * Decodes the frame at the given offset and dispatches its samples through the
+     * decoder of the matching Wiimote, the same path a local report takes.
+     */
+    protected void decode(byte[] b, int off)
+    {
+        if (b[off + 2] != BridgeFrame.VERSION)
+            return;
+        int sections = b[off + 3];
+        long address = BridgeFrame.getAddress(b, off + 4);
+        int sequence = BridgeFrame.getInt(b, off + 10);
+        long timestamp = BridgeFrame.getLong(b, off + 14);
+
+        Remote remote = remote(address);
+        if (remote.seen)
+        {
+            int gap = sequence - remote.nextSequence;
+            if (gap < -MAX_REORDER_FRAMES)
+            {
+                //the server restarted, with new sequence numbers and maybe a new clock
+                remote.seen = false;
+            } else if (gap < 0)
+            {
+                //an older frame overtaken by a newer one is stale by now
+                return;
+            } else
+                framesLost += gap;
+        }
+        remote.nextSequence = sequence + 1;
+        //the smallest offset seen is the closest to the real clock difference
+        long offset = System.nanoTime() - timestamp;
+        if (!remote.seen || offset < remote.clockOffset)
+            remote.clockOffset = offset;
+        remote.seen = true;
+        framesReceived++;
+
+        Wiimote.CommandListener decoder = remote.wiimote.commandListener;
+        decoder.beginReport(timestamp + remote.clockOffset);
+        int p = off + BridgeFrame.HEADER_BYTES;
+        if ((sections & BridgeFrame.BUTTONS) != 0)
+        {
+            decoder.updateButtons(BridgeFrame.getInt(b, p));
+            p += 4;
+        }
+        if ((sections & BridgeFrame.ACCEL) != 0)
+        {
+            decoder.accelX = BridgeFrame.getFloat(b, p);
+            decoder.accelY = BridgeFrame.getFloat(b, p + 4);
+            decoder.accelZ = BridgeFrame.getFloat(b, p + 8);
+            decoder.dispatchWiiRemoteAccelerateEvent();
+            p += 12;
+        }
+        if ((sections & BridgeFrame.NUNCHUK_ACCEL) != 0)
+        {
+            decoder.accelX = BridgeFrame.getFloat(b, p);
+            decoder.accelY = BridgeFrame.getFloat(b, p + 4);
+            decoder.accelZ = BridgeFrame.getFloat(b, p + 8);
+            decoder.dispatchNunchukAccelerateEvent();
+            p += 12;
+        }
+        if ((sections & BridgeFrame.JOYSTICK) != 0)
+        {
+            decoder.dispatchJoystick(BridgeFrame.getShort(b, p), BridgeFrame.getShort(b, p + 2));
+            p += 4;
+        }
+        if ((sections & BridgeFrame.IR) != 0)
+        {
+            decoder.beginIRFrame();
+            for (int slot = 0; slot < WiimoteState.IR_SLOTS; slot++)
+            {
+                decoder.decodeIRSlot(slot, BridgeFrame.getUnsignedShort(b, p), BridgeFrame.getUnsignedShort(b, p + 2), b[p + 4]);
+                p += BridgeFrame.IR_SLOT_BYTES;
+            }
+            decoder.endIRFrame();
+        }
+        decoder.endReport();
+    }
+
+    /**
+     * Finds the remote with the given address, creating its Wiimote the first time
+     */
+    protected Remote remote(long address)
+    {
+        for (Remote r : remotes)
+            if (r.address == address)
+                return r;
+        Remote r = new Remote(address, Wiimote.remote(BridgeFrame.formatAddress(address)));
+        remotes = Arrays.copyOf(remotes, remotes.length + 1);
+        remotes[remotes.length - 1] = r;
+        wiimotes.add(r.wiimote);
+        for (WiimoteDiscoveryListener l : listeners)
+            l.wiimoteDiscovered(r.wiimote);
+        return r;
+    }
+
+    protected static class Remote
+    {
+        final long address;
+        final Wiimote wiimote;
+        boolean seen;
+        int nextSequence;
+        //added to the server's timestamps to bring them onto this machine's System.nanoTime()
+        long clockOffset;
+
+        Remote(long address, Wiimote wiimote)
+        {
+            this.address = address;
+            this.wiimote = wiimote;
+        }
+    }
+}
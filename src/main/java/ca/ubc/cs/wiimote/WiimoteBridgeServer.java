@@ -0,0 +1,419 @@
+package ca.ubc.cs.wiimote;
+
+import ca.ubc.cs.wiimote.event.WiimoteRawListener;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Streams the decoded input of local wiimotes to another machine, where a
+ * WiimoteBridgeClient turns it back into Wiimote instances. Every report becomes one
+ * compact frame (see BridgeFrame) carrying a sequence number and the time it was received.
+ * Frames are encoded on the receive threads into a fixed ring without allocating and sent
+ * by a single sender thread, which packs as many waiting frames as fit into one datagram
+ * or socket write. If the network falls behind, new frames are dropped and counted rather
+ * than holding up the receive threads.
+ */
+public class WiimoteBridgeServer
+{
+    /**
+     * How many frames may wait for the sender thread.
+     */
+    final static int RING_FRAMES = 1024;
+
+    //exactly one of udp and tcp is set
+    final protected DatagramSocket udp;
+    final protected InetSocketAddress target;
+    final protected ServerSocket tcp;
+    final protected CopyOnWriteArrayList<Client> clients = new CopyOnWriteArrayList<Client>();
+    final protected Map<Wiimote, Encoder> encoders = new ConcurrentHashMap<Wiimote, Encoder>();
+    protected volatile boolean running;
+
+    //frames waiting to be sent, guarded by ring
+    final protected byte[][] ring = new byte[RING_FRAMES][BridgeFrame.MAX_BYTES];
+    protected int head, count;
+    protected volatile long framesDropped;
+
+    //only written by the sender thread
+    protected volatile long framesSent, packetsSent, bytesSent;
+    final protected Thread sender;
+    protected Thread acceptor;
+
+    /**
+     * Creates a server that sends datagrams to the given host and port, which may be a
+     * broadcast address.
+     */
+    public static WiimoteBridgeServer udp(String host, int port) throws IOException
+    {
+        return new WiimoteBridgeServer(new DatagramSocket(), new InetSocketAddress(host, port), null);
+    }
+
+    /**
+     * Creates a server that accepts clients on the given TCP port and streams to all of
+     * them. Port 0 picks a free port, see getPort().
+     */
+    public static WiimoteBridgeServer tcp(int port) throws IOException
+    {
+        return new WiimoteBridgeServer(null, null, new ServerSocket(port));
+    }
+
+    protected WiimoteBridgeServer(DatagramSocket udp, InetSocketAddress target, ServerSocket tcp)
+    {
+        this.udp = udp;
+        this.target = target;
+        this.tcp = tcp;
+        running = true;
+        sender = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                send();
+            }
+        }, "WiimoteBridgeServer sender");
+        sender.setDaemon(true);
+        sender.start();
+        if (tcp != null)
+        {
+            acceptor = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    accept();
+                }
+            }, "WiimoteBridgeServer acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+    }
+
+    /**
+     * Starts streaming the given wiimote. Its bluetooth address identifies it to clients.
+     */
+    public void add(Wiimote wiimote)
+    {
+        Encoder encoder = new Encoder(BridgeFrame.parseAddress(wiimote.getBluetoothAddress()));
+        if (encoders.putIfAbsent(wiimote, encoder) == null)
+            wiimote.addRawListener(encoder);
+    }
+
+    public void remove(Wiimote wiimote)
+    {
+        Encoder encoder = encoders.remove(wiimote);
+        if (encoder != null)
+            wiimote.removeRawListener(encoder);
+    }
+
+    /**
+     * Returns the local port of the server socket or datagram socket.
+     */
+    public int getPort()
+    {
+        return tcp != null ? tcp.getLocalPort() : udp.getLocalPort();
+    }
+
+    public int getClientCount()
+    {
+        return clients.size();
+    }
+
+    public long getFramesSent()
+    {
+        return framesSent;
+    }
+
+    /**
+     * Returns how many frames were dropped because the sender couldn't keep up.
+     */
+    public long getFramesDropped()
+    {
+        return framesDropped;
+    }
+
+    /**
+     * Returns how many datagrams, or socket writes for TCP, were made.
+     */
+    public long getPacketsSent()
+    {
+        return packetsSent;
+    }
+
+    public long getBytesSent()
+    {
+        return bytesSent;
+    }
+
+    /**
+     * Stops streaming and closes all sockets. The wiimotes themselves stay connected.
+     */
+    public void close()
+    {
+        running = false;
+        for (Wiimote wiimote : encoders.keySet())
+            remove(wiimote);
+        synchronized (ring)
+        {
+            ring.notifyAll();
+        }
+        try
+        {
+            if (tcp != null)
+                tcp.close();
+        } catch (IOException e)
+        {
+        }
+        if (udp != null)
+            udp.close();
+        for (Client c : clients)
+            c.close();
+    }
+
+    /**
+     * Copies a frame into the ring, or drops it if the ring is full.
+     */
+    protected void offer(byte[] frame, int length)
+    {
+        synchronized (ring)
+        {
+            if (count == ring.length)
+            {
+                framesDropped++;
+                return;
+            }
+            System.arraycopy(frame, 0, ring[(head + count) % ring.length], 0, length);
+            if (count++ == 0)
+                ring.notify();
+        }
+    }
+
+    protected void send()
+    {
+        byte[] packet = new byte[udp != null ? BridgeFrame.MAX_DATAGRAM : 64 * BridgeFrame.MAX_BYTES];
+        DatagramPacket datagram = udp != null ? new DatagramPacket(packet, 0, target) : null;
+        while (running)
+        {
+            int length = 0;
+            int frames = 0;
+            synchronized (ring)
+            {
+                while (count == 0 && running)
+                {
+                    try
+                    {
+                        ring.wait();
+                    } catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+                //take as many whole frames as fit in one packet
+                while (count > 0)
+                {
+                    byte[] frame = ring[head];
+                    int frameLength = BridgeFrame.getUnsignedShort(frame, 0);
+                    if (length + frameLength > packet.length)
+                        break;
+                    System.arraycopy(frame, 0, packet, length, frameLength);
+                    length += frameLength;
+                    head = (head + 1) % ring.length;
+                    count--;
+                    frames++;
+                }
+            }
+            if (length == 0)
+                continue;
+            if (udp != null)
+            {
+                datagram.setLength(length);
+                try
+                {
+                    udp.send(datagram);
+                } catch (IOException e)
+                {
+                    if (running)
+                        System.out.println("wiimote bridge send to " + target + " failed: " + e);
+                    continue;
+                }
+            } else
+            {
+                if (clients.isEmpty())
+                    continue;
+                for (Client c : clients)
+                    c.write(packet, length);
+            }
+            framesSent += frames;
+            packetsSent++;
+            bytesSent += length;
+        }
+    }
+
+    protected void accept()
+    {
+        while (running)
+        {
+            try
+            {
+                Socket socket = tcp.accept();
+                socket.setTcpNoDelay(true);
+                clients.add(new Client(socket));
+            } catch (IOException e)
+            {
+                if (running)
+                    System.out.println("wiimote bridge accept failed: " + e);
+            }
+        }
+    }
+
+    protected class Client
+    {
+        final protected Socket socket;
+        final protected OutputStream out;
+
+        Client(Socket socket) throws IOException
+        {
+            this.socket = socket;
+            out = socket.getOutputStream();
+        }
+
+        void write(byte[] b, int length)
+        {
+            try
+            {
+                out.write(b, 0, length);
+            } catch (IOException e)
+            {
+                if (running)
+                    System.out.println("wiimote bridge client " + socket.getRemoteSocketAddress() + " dropped: " + e);
+                close();
+            }
+        }
+
+        void close()
+        {
+            clients.remove(this);
+            try
+            {
+                socket.close();
+            } catch (IOException e)
+            {
+            }
+        }
+    }
+
+    /**
+     * Collects the samples of one report on the wiimote's receive thread and encodes them
+     * into a frame once the report is done.
+     */
+    protected class Encoder implements WiimoteRawListener
+    {
+        final protected long address;
+        final protected byte[] frame = new byte[BridgeFrame.MAX_BYTES];
+        final protected WiimoteState snapshot = new WiimoteState();
+        protected int sequence;
+        protected int sections;
+        protected double accelX, accelY, accelZ;
+        protected double nunchukX, nunchukY, nunchukZ;
+        protected int joystickX, joystickY;
+
+        Encoder(long address)
+        {
+            this.address = address;
+        }
+
+        public void onButtons(Wiimote w, int pressedMask, int changedMask)
+        {
+        }
+
+        public void onAccel(Wiimote w, int source, double x, double y, double z, long nanos)
+        {
+            if (source == SOURCE_NUNCHUK)
+            {
+                sections |= BridgeFrame.NUNCHUK_ACCEL;
+                nunchukX = x;
+                nunchukY = y;
+                nunchukZ = z;
+            } else
+            {
+                sections |= BridgeFrame.ACCEL;
+                accelX = x;
+                accelY = y;
+                accelZ = z;
+            }
+        }
+
+        public void onIR(Wiimote w, int slot, int x, int y, int size)
+        {
+        }
+
+        public void onNunchukJoystick(Wiimote w, int x, int y)
+        {
+            sections |= BridgeFrame.JOYSTICK;
+            joystickX = x;
+            joystickY = y;
+        }
+
+        /**
+         * Buttons are sent with every report, so a lost datagram can't leave a button
+         * stuck on the client. IR is sent whenever the reporting mode carries it, since
+         * raw listeners aren't told about slots that went out of view.
+         */
+        public void onReportEnd(Wiimote w, long nanos)
+        {
+            w.getState(snapshot);
+            int s = sections | BridgeFrame.BUTTONS;
+            if (w.getReportingMode().irMode != ReportingMode.IRMode.NONE)
+                s |= BridgeFrame.IR;
+            sections = 0;
+
+            int off = BridgeFrame.HEADER_BYTES;
+            BridgeFrame.putInt(frame, off, snapshot.getButtonMask());
+            off += 4;
+            if ((s & BridgeFrame.ACCEL) != 0)
+            {
+                BridgeFrame.putFloat(frame, off, accelX);
+                BridgeFrame.putFloat(frame, off + 4, accelY);
+                BridgeFrame.putFloat(frame, off + 8, accelZ);
+                off += 12;
+            }
+            if ((s & BridgeFrame.NUNCHUK_ACCEL) != 0)
+            {
+                BridgeFrame.putFloat(frame, off, nunchukX);
+                BridgeFrame.putFloat(frame, off + 4, nunchukY);
+                BridgeFrame.putFloat(frame, off + 8, nunchukZ);
+                off += 12;
+            }
+            if ((s & BridgeFrame.JOYSTICK) != 0)
+            {
+                BridgeFrame.putShort(frame, off, joystickX);
+                BridgeFrame.putShort(frame, off + 2, joystickY);
+                off += 4;
+            }
+            if ((s & BridgeFrame.IR) != 0)
+            {
+                for (int slot = 0; slot < WiimoteState.IR_SLOTS; slot++)
+                {
+                    boolean visible = snapshot.isIRVisible(slot);
+                    BridgeFrame.putShort(frame, off, visible ? snapshot.getIRX(slot) : 1023);
+                    BridgeFrame.putShort(frame, off + 2, visible ? snapshot.getIRY(slot) : 1023);
+                    frame[off + 4] = (byte) snapshot.getIRSize(slot);
+                    off += BridgeFrame.IR_SLOT_BYTES;
+                }
+            }
+
+            BridgeFrame.putShort(frame, 0, off);
+            frame[2] = BridgeFrame.VERSION;
+            frame[3] = (byte) s;
+            BridgeFrame.putAddress(frame, 4, address);
+            BridgeFrame.putInt(frame, 10, sequence++);
+            BridgeFrame.putLong(frame, 14, nanos);
+            offer(frame, off);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package ca.ubc.cs.wiimote;
+
+/**
+ * Implement this interface to be told when a Wiimote loses its connection, for example
+ * because its batteries ran out or it went out of range, and when it is reconnected.
+ * Register your listener with Wiimote.addConnectionListener(). All callbacks run one at a
+ * time, in the order the events happened, on the single timer thread shared by all
+ * wiimotes, so they should return quickly.
+ */
+public interface WiimoteConnectionListener {
+	/**
+	 * Is called once when the connection to the wiimote is found to be dead. reason
+	 * describes how it was detected.
+	 */
+	public void wiimoteDisconnected(Wiimote wiimote, String reason);
+
+	/**
+	 * Is called when a reconnect attempt succeeded. The wiimote has been put back into the
+	 * reporting mode and light state it had before.
+	 */
+	default void wiimoteReconnected(Wiimote wiimote) {}
+
+	/**
+	 * Is called once when cleanup() closes the wiimote for good.
+	 */
+	default void wiimoteClosed(Wiimote wiimote) {}
+}
@@ -21,27 +21,46 @@ package ca.ubc.cs.wiimote;
 
 import javax.bluetooth.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * This class is used to perform searches for wiimotes. When it finds a wiimote
- * it creates a Wiimote instance and notifies any listeners.
+ * it creates a Wiimote instance and notifies any listeners. Inquiry keeps running while
+ * the connections to wiimotes already found are opened in parallel, up to
+ * getMaxConcurrentConnections() at a time.
  */
 public class WiimoteDiscoverer extends Thread implements DiscoveryListener{
-	//stores previously found wiimotes so that we don't try to connect to the same one twice
-	static LinkedList<String> discoveredWiimoteAddresses = new LinkedList<String>();
+	//stores found wiimotes, connected or being connected to, so that we don't try to connect to the same one twice
+	static Set<String> discoveredWiimoteAddresses = Collections.synchronizedSet(new HashSet<String>());
 	static WiimoteDiscoverer discoverer;
 	
-	//stores the address of a newly found wiimote
-	String discoveredAddress;
+	final static int DEFAULT_MAX_CONCURRENT_CONNECTIONS = 4;
+	
 	DiscoveryAgent agent;
 	
 	Object lock;
 	
+	//opens connections to found wiimotes while inquiry continues
+	ThreadPoolExecutor connector;
+	
+	//addresses of wiimotes connected to in earlier sessions
+	KnownWiimotes knownWiimotes;
+	
 	//stores the live connections so we can close them later
-	LinkedList<WiimoteDiscoveryListener> listeners;
+	CopyOnWriteArrayList<WiimoteDiscoveryListener> listeners;
 	
 	protected WiimoteDiscoverer() {
-		listeners = new LinkedList<WiimoteDiscoveryListener>();
+		listeners = new CopyOnWriteArrayList<WiimoteDiscoveryListener>();
+		connector = new ThreadPoolExecutor(DEFAULT_MAX_CONCURRENT_CONNECTIONS, DEFAULT_MAX_CONCURRENT_CONNECTIONS,
+				30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Wiimote connector");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		connector.allowCoreThreadTimeOut(true);
+		knownWiimotes = new KnownWiimotes();
 		try {
 			LocalDevice device = LocalDevice.getLocalDevice();
 			agent = device.getDiscoveryAgent();
@@ -69,8 +88,7 @@ public class WiimoteDiscoverer extends Thread implements DiscoveryListener{
 	 * will be notified whenver a Wiimote is discovered and connected to.
 	 */
 	public void addWiimoteDiscoveryListener(WiimoteDiscoveryListener l) {
-		if (!listeners.contains(l))
-			listeners.add(l);
+		listeners.addIfAbsent(l);
 	}
 	
 	/**
@@ -81,55 +99,114 @@ public class WiimoteDiscoverer extends Thread implements DiscoveryListener{
 	}
 	
 	/**
-	 * Notifies listeners that a wiimote has been discovered and connected to.
+	 * Sets how many connections to found wiimotes may be opened at the same time.
+	 */
+	public void setMaxConcurrentConnections(int max) {
+		if (max < 1)
+			throw new IllegalArgumentException("max must be at least 1");
+		if (max > connector.getMaximumPoolSize()) {
+			connector.setMaximumPoolSize(max);
+			connector.setCorePoolSize(max);
+		}
+		else {
+			connector.setCorePoolSize(max);
+			connector.setMaximumPoolSize(max);
+		}
+	}
+	
+	public int getMaxConcurrentConnections() {
+		return connector.getMaximumPoolSize();
+	}
+	
+	/**
+	 * Notifies listeners that a wiimote has been discovered and connected to. Is called
+	 * on the thread that opened the connection.
 	 */
 	protected void notifyListeners(Wiimote wiimote) {
-		for (ListIterator<WiimoteDiscoveryListener> it = listeners.listIterator(); it.hasNext(); ) {
-			it.next().wiimoteDiscovered(wiimote);
+		for (WiimoteDiscoveryListener l : listeners) {
+			l.wiimoteDiscovered(wiimote);
+		}
+	}
+	
+	/**
+	 * Returns the registry of wiimotes connected to before. Every successful connection is recorded in it.
+	 */
+	public KnownWiimotes getKnownWiimotes() {
+		return knownWiimotes;
+	}
+	
+	/**
+	 * Connects straight to every known wiimote that isn't connected yet, in parallel and without
+	 * an inquiry, and waits for the attempts to finish. Listeners are notified as usual. If any
+	 * known wiimote doesn't answer, an inquiry is started so it can still be found.
+	 * Returns the wiimotes connected to.
+	 */
+	public List<Wiimote> reconnectKnown() throws InterruptedException {
+		List<Future<Wiimote>> attempts = new ArrayList<Future<Wiimote>>();
+		for (String address : knownWiimotes.getAddresses()) {
+			if (discoveredWiimoteAddresses.add(address))
+				attempts.add(connect(address));
 		}
+		List<Wiimote> connected = new ArrayList<Wiimote>();
+		boolean missing = false;
+		for (Future<Wiimote> attempt : attempts) {
+			try {
+				connected.add(attempt.get());
+			}
+			catch (ExecutionException e) {
+				missing = true;
+			}
+		}
+		if (missing)
+			startWiimoteSearch();
+		return connected;
+	}
+	
+	/**
+	 * Opens the connection to a found wiimote in the background and notifies listeners once it is
+	 * connected. If the connection fails the address is forgotten so the wiimote can be found again.
+	 */
+	protected Future<Wiimote> connect(final String address) {
+		return connector.submit(new Callable<Wiimote>() {
+			public Wiimote call() throws Exception {
+				try {
+					Wiimote wiimote = new Wiimote(address);
+					System.out.println("Connected to " + address + ".");
+					knownWiimotes.add(address);
+					notifyListeners(wiimote);
+					return wiimote;
+				} catch (Exception e) {
+		    		discoveredWiimoteAddresses.remove(address);
+		    		System.out.println("Connection to " + address + " failed. Try again. " + e);
+		    		throw e;
+				}
+			}
+		});
 	}
 	
 	/**
 	 * This runs while wiimotes are being searched for. It is initiated by a call to startWiimoteSearch().
 	 * It continusously finds wiimotes and notifies any listeners until stopWiimoteSearch() is called.
+	 * Connections are opened by deviceDiscovered() while inquiry goes on.
 	 */
 	public void run() {
 		System.out.println("Wiimote Discovery Started");
-		Wiimote wiimote = null;
 		try {
-			while (true && !isInterrupted()) {
-				do {
-					System.out.println("Press 1 & 2 on your Wiimote now");
+			while (!isInterrupted()) {
+				System.out.println("Press 1 & 2 on your Wiimote now");
+				synchronized (lock) {
 					agent.startInquiry(DiscoveryAgent.GIAC, this);
-					synchronized (lock) {
-						lock.wait();
-					}
-				} while (discoveredAddress==null);
-				try {
-					if (discoveredAddress!=null) {
-						wiimote = new Wiimote(discoveredAddress);
-						System.out.println("Connected.");
-						notifyListeners(wiimote);
-						wiimote = null;
-						discoveredWiimoteAddresses.add(discoveredAddress);
-						discoveredAddress = null;
-					}
-				} catch (Exception e) {
-		    		discoveredAddress = null;
-		    		discoveredWiimoteAddresses.remove(discoveredAddress);
-		    		System.out.println("Connection failed. Try again. " + e);
+					lock.wait();
 				}
 			}
 		}
-		catch (InterruptedException e) {}
+		catch (InterruptedException e) {
+			agent.cancelInquiry(this);
+		}
 		catch (BluetoothStateException bse) {
 			System.err.println("Error Starting Wiimote Discovery");
 			bse.printStackTrace();
 		}
-		finally {
-			if (wiimote!=null)
-				wiimote.cleanup();
-		}
 		System.out.println("Wiimote Discovery Stopped");
 	}
 	
@@ -187,14 +264,14 @@ public class WiimoteDiscoverer extends Thread implements DiscoveryListener{
 		System.out.print(" " + address+". ");
 		
 		//check to see if we found this wiimote previously. return if we did. we want a new one.
-		if (discoveredWiimoteAddresses.contains(address)) {
+		if (!discoveredWiimoteAddresses.add(address)) {
 			System.out.println("Already connected.");
 			return;
 		}
 		
-		discoveredAddress = address;
-		//cancel inquiry so we can go to the next step of creating the connections
-		agent.cancelInquiry(this);
+		System.out.println("Connecting.");
+		//inquiry keeps going while the connection opens
+		connect(address);
 	}
 	
 	/**
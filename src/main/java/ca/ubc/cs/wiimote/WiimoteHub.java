@@ -0,0 +1,275 @@
+package ca.ubc.cs.wiimote;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the receive loops of many wiimotes on a small, fixed set of threads instead of one
+ * thread per wiimote. Each hub thread sweeps the connections assigned to it and decodes the
+ * reports that are waiting, backing off when none are. Connections that are closed or lost
+ * are dropped from the sweep, a reconnected wiimote is assigned again, and close() shuts
+ * the whole hub down, closing its wiimotes whether they are connected or reconnecting.
+ * Commands to the wiimotes are written by as many shared writer threads as there are hub
+ * threads, so a hub costs twice its thread count however many wiimotes it runs. A writer
+ * waiting for a register write to be acknowledged is held up for that long, at most a
+ * second, while the other writers carry on.
+ */
+public class WiimoteHub
+{
+    /**
+     * The longest a hub thread sleeps between sweeps while its wiimotes are quiet.
+     */
+    final static long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    final static long MIN_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(250);
+
+    final protected Worker[] workers;
+    //write the command queues of the hub's wiimotes
+    final ExecutorService writers;
+    protected volatile boolean running;
+    protected volatile long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(1);
+    protected int nextWorker;
+    //every wiimote run by the hub that hasn't been cleaned up, including those that are
+    //reconnecting and so in no sweep; guarded by the hub's lock
+    final protected Set<Wiimote> owned = new HashSet<Wiimote>();
+
+    /**
+     * Creates a hub that runs its receive loops on the given number of threads.
+     */
+    public WiimoteHub(int threads)
+    {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be at least 1");
+        running = true;
+        writers = Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            int count;
+
+            public synchronized Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "WiimoteHub writer " + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++)
+        {
+            workers[i] = new Worker("WiimoteHub " + i);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Creates a hub with one thread per two available processors.
+     */
+    public WiimoteHub()
+    {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    /**
+     * Connects to the wiimote with the given bluetooth address and runs its receive loop
+     * on this hub.
+     */
+    public Wiimote connect(String address) throws Exception
+    {
+        if (!running)
+            throw new IllegalStateException("hub is closed");
+        return new Wiimote(address, this);
+    }
+
+    /**
+     * Assigns a newly connected or reconnected wiimote to the least loaded hub thread. A
+     * wiimote that connects after the hub was closed is cleaned up instead.
+     */
+    synchronized void attach(Wiimote wiimote)
+    {
+        if (!running)
+        {
+            wiimote.cleanup();
+            return;
+        }
+        owned.add(wiimote);
+        //a reconnect may come before the old connection was dropped from its sweep
+        for (Worker w : workers)
+            w.remove(wiimote);
+        Worker worker = workers[nextWorker];
+        for (Worker w : workers)
+            if (w.decoders.length < worker.decoders.length)
+                worker = w;
+        nextWorker = (nextWorker + 1) % workers.length;
+        worker.add(wiimote.commandListener);
+    }
+
+    /**
+     * Sets after how long without a report an open connection counts as idle.
+     */
+    public void setIdleTimeout(long millis)
+    {
+        idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Returns the open connections that have reported within the idle timeout.
+     */
+    public int getActiveCount()
+    {
+        return count(true);
+    }
+
+    /**
+     * Returns the open connections that have been quiet for longer than the idle timeout.
+     */
+    public int getIdleCount()
+    {
+        return count(false);
+    }
+
+    public int getConnectionCount()
+    {
+        int n = 0;
+        for (Worker w : workers)
+            n += w.decoders.length;
+        return n;
+    }
+
+    protected int count(boolean active)
+    {
+        long now = System.nanoTime();
+        int n = 0;
+        for (Worker w : workers)
+            for (Wiimote.CommandListener decoder : w.decoders)
+                if (decoder.isOpen() && (now - decoder.getWiimote().lastReportTime <= idleTimeoutNanos) == active)
+                    n++;
+        return n;
+    }
+
+    /**
+     * Forgets a wiimote that was cleaned up
+     */
+    synchronized void release(Wiimote wiimote)
+    {
+        owned.remove(wiimote);
+    }
+
+    /**
+     * Stops all hub threads and cleans up every wiimote the hub was running, including
+     * those waiting to be reconnected. May be called from a listener.
+     */
+    public void close()
+    {
+        Wiimote[] wiimotes;
+        synchronized (this)
+        {
+            running = false;
+            wiimotes = owned.toArray(new Wiimote[owned.size()]);
+            owned.clear();
+        }
+        for (Worker w : workers)
+        {
+            LockSupport.unpark(w);
+            //closed from a listener called on a hub thread, which ends after the callback
+            if (w != Thread.currentThread())
+            {
+                try
+                {
+                    w.join();
+                } catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            w.decoders = new Wiimote.CommandListener[0];
+        }
+        //outside the hub's lock, as a reconnecting wiimote holds its own lock while it
+        //attaches
+        for (Wiimote wiimote : wiimotes)
+            wiimote.cleanup();
+        writers.shutdown();
+    }
+
+    protected class Worker extends Thread
+    {
+        //the decoders of the connections in the sweep; copy-on-write, only replaced under
+        //the worker's lock
+        protected volatile Wiimote.CommandListener[] decoders = new Wiimote.CommandListener[0];
+
+        Worker(String name)
+        {
+            super(name);
+            setDaemon(true);
+        }
+
+        synchronized void add(Wiimote.CommandListener decoder)
+        {
+            Wiimote.CommandListener[] d = Arrays.copyOf(decoders, decoders.length + 1);
+            d[d.length - 1] = decoder;
+            decoders = d;
+            LockSupport.unpark(this);
+        }
+
+        /**
+         * Drops the decoder of the given wiimote from the sweep
+         */
+        synchronized void remove(Wiimote wiimote)
+        {
+            for (Wiimote.CommandListener decoder : decoders)
+                if (decoder.getWiimote() == wiimote)
+                    remove(decoder);
+        }
+
+        synchronized void remove(Wiimote.CommandListener decoder)
+        {
+            Wiimote.CommandListener[] d = decoders;
+            for (int i = 0; i < d.length; i++)
+                if (d[i] == decoder)
+                {
+                    Wiimote.CommandListener[] copy = Arrays.copyOf(d, d.length - 1);
+                    System.arraycopy(d, i + 1, copy, i, d.length - i - 1);
+                    decoders = copy;
+                    return;
+                }
+        }
+
+        public void run()
+        {
+            long backoff = MIN_BACKOFF_NANOS;
+            while (running)
+            {
+                boolean received = false;
+                Wiimote.CommandListener[] d = decoders;
+                for (int i = 0; i < d.length; i++)
+                {
+                    Wiimote.CommandListener decoder = d[i];
+                    if (!decoder.isOpen())
+                    {
+                        //the connection ended, release its buttons on the thread that
+                        //decoded its reports
+                        remove(decoder);
+                        decoder.releaseButtons();
+                        if (decoder.getWiimote().closed)
+                            release(decoder.getWiimote());
+                        continue;
+                    }
+                    //drain everything this connection has buffered; a connection that
+                    //keeps failing is marked lost and dropped on the next sweep
+                    while (decoder.poll())
+                        received = true;
+                }
+                if (received)
+                    backoff = MIN_BACKOFF_NANOS;
+                else
+                {
+                    LockSupport.parkNanos(this, backoff);
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF_NANOS);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package ca.ubc.cs.wiimote;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * A snapshot of everything a wiimote last reported: buttons, calibrated accelerometer
+ * values, nunchuk and the four IR slots. For consumers that would rather read the current
+ * state once per frame than receive callbacks; see Wiimote.getState(WiimoteState).
+ * <p>
+ * A Wiimote publishes its state after every report using a sequence lock: readers copy
+ * the fields and retry if a report was published meanwhile, so the receive thread never
+ * waits for a reader and reading never allocates.
+ */
+public class WiimoteState
+{
+    public static final int IR_SLOTS = 4;
+
+    protected int buttonMask;
+    protected double accelX, accelY, accelZ;
+    protected double nunchukAccelX, nunchukAccelY, nunchukAccelZ;
+    protected int joystickX, joystickY;
+    final protected int[] irX = new int[IR_SLOTS];
+    final protected int[] irY = new int[IR_SLOTS];
+    final protected int[] irSize = new int[IR_SLOTS];
+    protected int irVisibleMask;
+    protected long timestamp;
+
+    //odd while a write is in progress, only used on the instance a Wiimote publishes to
+    private volatile long sequence;
+
+    /**
+     * Copies the published state into dst, retrying until it gets a copy that no report
+     * was published during.
+     */
+    void readInto(WiimoteState dst)
+    {
+        while (true)
+        {
+            long before = sequence;
+            if ((before & 1) == 0)
+            {
+                dst.copyFrom(this);
+                //keep the field reads above from moving below the second sequence read
+                VarHandle.loadLoadFence();
+                if (sequence == before)
+                    return;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Publishes src as the new state. Only one thread may publish to an instance.
+     */
+    void publish(WiimoteState src)
+    {
+        long s = sequence;
+        sequence = s + 1;
+        //keep the field writes below from moving above the odd sequence write
+        VarHandle.storeStoreFence();
+        copyFrom(src);
+        sequence = s + 2;
+    }
+
+    protected void copyFrom(WiimoteState src)
+    {
+        buttonMask = src.buttonMask;
+        accelX = src.accelX;
+        accelY = src.accelY;
+        accelZ = src.accelZ;
+        nunchukAccelX = src.nunchukAccelX;
+        nunchukAccelY = src.nunchukAccelY;
+        nunchukAccelZ = src.nunchukAccelZ;
+        joystickX = src.joystickX;
+        joystickY = src.joystickY;
+        System.arraycopy(src.irX, 0, irX, 0, IR_SLOTS);
+        System.arraycopy(src.irY, 0, irY, 0, IR_SLOTS);
+        System.arraycopy(src.irSize, 0, irSize, 0, IR_SLOTS);
+        irVisibleMask = src.irVisibleMask;
+        timestamp = src.timestamp;
+    }
+
+    /**
+     * Returns the WiiButtonEvent.Button masks of the buttons held down.
+     */
+    public int getButtonMask()
+    {
+        return buttonMask;
+    }
+
+    public double getAccelX()
+    {
+        return accelX;
+    }
+
+    public double getAccelY()
+    {
+        return accelY;
+    }
+
+    public double getAccelZ()
+    {
+        return accelZ;
+    }
+
+    public double getNunchukAccelX()
+    {
+        return nunchukAccelX;
+    }
+
+    public double getNunchukAccelY()
+    {
+        return nunchukAccelY;
+    }
+
+    public double getNunchukAccelZ()
+    {
+        return nunchukAccelZ;
+    }
+
+    public int getJoystickX()
+    {
+        return joystickX;
+    }
+
+    public int getJoystickY()
+    {
+        return joystickY;
+    }
+
+    /**
+     * Returns a bitmask with bit n set if IR light source n is visible.
+     */
+    public int getIRVisibleMask()
+    {
+        return irVisibleMask;
+    }
+
+    public boolean isIRVisible(int slot)
+    {
+        return (irVisibleMask & (1 << slot)) != 0;
+    }
+
+    public int getIRX(int slot)
+    {
+        return irX[slot];
+    }
+
+    public int getIRY(int slot)
+    {
+        return irY[slot];
+    }
+
+    public int getIRSize(int slot)
+    {
+        return irSize[slot];
+    }
+
+    /**
+     * Returns the System.nanoTime() at which the report was received, or 0 if there has
+     * been none.
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+}
@@ -0,0 +1,303 @@
+package ca.ubc.cs.wiimote.event;
+
+/**
+ * Wraps a WiimoteListener so that its callbacks run on a thread of its own instead of the
+ * wiimote's receive thread. Events are handed over through a bounded ring buffer; what
+ * happens when the ring is full is decided by the OverflowPolicy. Normally created through
+ * Wiimote.addAsyncListener().
+ */
+public class AsyncWiimoteListener implements WiimoteListener
+{
+    final protected WiimoteListener delegate;
+    final protected OverflowPolicy policy;
+    final protected WiiEvent[] ring;
+    //index of the oldest queued event and number of queued events, guarded by this
+    protected int head, count;
+    protected long dropped;
+    protected boolean running;
+    final protected Thread consumer;
+
+    public AsyncWiimoteListener(WiimoteListener delegate, int capacity, OverflowPolicy policy)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be at least 1");
+        this.delegate = delegate;
+        this.policy = policy;
+        ring = new WiiEvent[capacity];
+        running = true;
+        consumer = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                consume();
+            }
+        }, "AsyncWiimoteListener");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Returns the listener whose callbacks are run asynchronously.
+     */
+    public WiimoteListener getDelegate()
+    {
+        return delegate;
+    }
+
+    public OverflowPolicy getOverflowPolicy()
+    {
+        return policy;
+    }
+
+    /**
+     * Returns how many events were discarded (or overwritten by a newer one) because this
+     * listener fell behind.
+     */
+    public synchronized long getDroppedCount()
+    {
+        return dropped;
+    }
+
+    /**
+     * Returns how many events are waiting to be delivered.
+     */
+    public synchronized int getQueuedCount()
+    {
+        return count;
+    }
+
+    /**
+     * Stops the consumer thread. Events still queued are discarded.
+     */
+    public void close()
+    {
+        synchronized (this)
+        {
+            running = false;
+            notifyAll();
+        }
+        if (Thread.currentThread() != consumer)
+            consumer.interrupt();
+    }
+
+    public void wiiButtonPress(WiiButtonEvent e)
+    {
+        offer(e);
+    }
+
+    public void wiiButtonRelease(WiiButtonEvent e)
+    {
+        offer(e);
+    }
+
+    public void wiiButtonsChanged(WiiButtonsChangedEvent e)
+    {
+        offer(e);
+    }
+
+    public void wiiIRInput(WiiIREvent e)
+    {
+        offer(e.detach());
+    }
+
+    public void wiiIRFrameInput(WiiIRFrameEvent e)
+    {
+        offer(e.detach());
+    }
+
+    public void wiiAccelInput(WiiAccelerateEvent e)
+    {
+        offer(e.detach());
+    }
+
+    public void wiiNunchukAccelInput(WiiAccelerateEvent e)
+    {
+        offer(e.detach());
+    }
+
+    public void wiiNunchukJoystickInput(WiiNunchukJoystickEvent e)
+    {
+        offer(e);
+    }
+
+    /**
+     * Queues the event, applying the overflow policy if the ring is full. Is called on
+     * the wiimote's receive thread.
+     */
+    protected synchronized void offer(WiiEvent e)
+    {
+        if (!running)
+            return;
+        if (count == ring.length)
+        {
+            switch (policy)
+            {
+                case DROP_NEWEST:
+                    dropped++;
+                    return;
+                case DROP_OLDEST:
+                    ring[head] = null;
+                    head = (head + 1) % ring.length;
+                    count--;
+                    dropped++;
+                    break;
+                case COALESCE_LATEST:
+                    if (!isButtonEvent(e))
+                    {
+                        //overwrite the newest queued event of the same stream
+                        for (int i = count - 1; i >= 0; i--)
+                        {
+                            int index = (head + i) % ring.length;
+                            if (sameStream(ring[index], e))
+                            {
+                                ring[index] = e;
+                                dropped++;
+                                return;
+                            }
+                        }
+                        dropped++;
+                        return;
+                    }
+                    //button transitions are never coalesced, wait for room instead
+                    if (!awaitRoom())
+                        return;
+                    break;
+                case BLOCK:
+                    if (!awaitRoom())
+                        return;
+                    break;
+            }
+        }
+        ring[(head + count) % ring.length] = e;
+        count++;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the ring has room, called from offer with the lock held. Returns false
+     * if the listener was stopped or the thread interrupted meanwhile.
+     */
+    protected boolean awaitRoom()
+    {
+        while (count == ring.length && running)
+        {
+            try
+            {
+                wait();
+            } catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return running;
+    }
+
+    protected static boolean isButtonEvent(WiiEvent e)
+    {
+        return e instanceof WiiButtonEvent || e instanceof WiiButtonsChangedEvent;
+    }
+
+    protected static boolean sameStream(WiiEvent a, WiiEvent b)
+    {
+        if (a.getClass() != b.getClass())
+            return false;
+        if (a instanceof WiiAccelerateEvent)
+            return ((WiiAccelerateEvent) a).source == ((WiiAccelerateEvent) b).source;
+        if (a instanceof WiiIREvent)
+            return ((WiiIREvent) a).getLightSource() == ((WiiIREvent) b).getLightSource();
+        return !isButtonEvent(a);
+    }
+
+    protected void consume()
+    {
+        while (true)
+        {
+            WiiEvent e;
+            synchronized (this)
+            {
+                while (count == 0 && running)
+                {
+                    try
+                    {
+                        wait();
+                    } catch (InterruptedException ie)
+                    {
+                        if (!running)
+                            return;
+                    }
+                }
+                if (!running)
+                    return;
+                e = ring[head];
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+                count--;
+                notifyAll();
+            }
+            try
+            {
+                deliver(e);
+            } catch (RuntimeException ex)
+            {
+                System.out.println("AsyncWiimoteListener exception in listener: " + ex);
+            }
+        }
+    }
+
+    protected void deliver(WiiEvent e)
+    {
+        deliver(delegate, e);
+    }
+
+    /**
+     * Calls the callback of the given listener that matches the type of e.
+     */
+    protected static void deliver(WiimoteListener delegate, WiiEvent e)
+    {
+        if (e instanceof WiiButtonEvent)
+        {
+            if (((WiiButtonEvent) e).getWasPress())
+                delegate.wiiButtonPress((WiiButtonEvent) e);
+            else
+                delegate.wiiButtonRelease((WiiButtonEvent) e);
+        } else if (e instanceof WiiButtonsChangedEvent)
+            delegate.wiiButtonsChanged((WiiButtonsChangedEvent) e);
+        else if (e instanceof WiiIREvent)
+            delegate.wiiIRInput((WiiIREvent) e);
+        else if (e instanceof WiiIRFrameEvent)
+            delegate.wiiIRFrameInput((WiiIRFrameEvent) e);
+        else if (e instanceof WiiAccelerateEvent)
+        {
+            if (((WiiAccelerateEvent) e).source == WiiAccelerateEvent.EventSource.NUNCHUK)
+                delegate.wiiNunchukAccelInput((WiiAccelerateEvent) e);
+            else
+                delegate.wiiAccelInput((WiiAccelerateEvent) e);
+        } else if (e instanceof WiiNunchukJoystickEvent)
+            delegate.wiiNunchukJoystickInput((WiiNunchukJoystickEvent) e);
+    }
+
+    /**
+     * What a full ring does with an incoming event.
+     */
+    public enum OverflowPolicy
+    {
+        /**
+         * The receive thread waits until the listener has made room.
+         */
+        BLOCK,
+        /**
+         * The oldest queued event is discarded to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * The incoming event is discarded.
+         */
+        DROP_NEWEST,
+        /**
+         * The incoming event replaces the newest queued event of the same stream. Button
+         * events are never coalesced and wait for room instead.
+         */
+        COALESCE_LATEST
+    }
+}
@@ -0,0 +1,118 @@
+package ca.ubc.cs.wiimote.event;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A WiimoteListener that keeps only the latest value of each continuous stream (wii remote
+ * accel, nunchuk accel, nunchuk joystick, each IR light source and the IR frame) until the
+ * consumer asks for it. Button events are queued and always delivered, in order. This
+ * suits consumers that poll once per frame, e.g. a game loop. Normally created through
+ * Wiimote.addConflatingListener().
+ */
+public class ConflatingWiimoteListener implements WiimoteListener
+{
+    final protected AtomicReference<WiiAccelerateEvent> accel = new AtomicReference<WiiAccelerateEvent>();
+    final protected AtomicReference<WiiAccelerateEvent> nunchukAccel = new AtomicReference<WiiAccelerateEvent>();
+    final protected AtomicReference<WiiNunchukJoystickEvent> joystick = new AtomicReference<WiiNunchukJoystickEvent>();
+    final protected AtomicReference<WiiIRFrameEvent> irFrame = new AtomicReference<WiiIRFrameEvent>();
+    final protected AtomicReferenceArray<WiiIREvent> ir = new AtomicReferenceArray<WiiIREvent>(4);
+    //WiiButtonEvents and WiiButtonsChangedEvents, in arrival order
+    final protected ConcurrentLinkedQueue<WiiEvent> buttons = new ConcurrentLinkedQueue<WiiEvent>();
+
+    /**
+     * Delivers every queued button event, then the latest value of every stream that
+     * changed since the last drain, to the given listener on the calling thread. Returns
+     * the number of events delivered.
+     */
+    public int drain(WiimoteListener target)
+    {
+        int delivered = 0;
+        WiiEvent b;
+        while ((b = buttons.poll()) != null)
+        {
+            if (b instanceof WiiButtonsChangedEvent)
+                target.wiiButtonsChanged((WiiButtonsChangedEvent) b);
+            else if (((WiiButtonEvent) b).getWasPress())
+                target.wiiButtonPress((WiiButtonEvent) b);
+            else
+                target.wiiButtonRelease((WiiButtonEvent) b);
+            delivered++;
+        }
+        WiiAccelerateEvent a = accel.getAndSet(null);
+        if (a != null)
+        {
+            target.wiiAccelInput(a);
+            delivered++;
+        }
+        a = nunchukAccel.getAndSet(null);
+        if (a != null)
+        {
+            target.wiiNunchukAccelInput(a);
+            delivered++;
+        }
+        WiiNunchukJoystickEvent j = joystick.getAndSet(null);
+        if (j != null)
+        {
+            target.wiiNunchukJoystickInput(j);
+            delivered++;
+        }
+        for (int i = 0; i < ir.length(); i++)
+        {
+            WiiIREvent e = ir.getAndSet(i, null);
+            if (e != null)
+            {
+                target.wiiIRInput(e);
+                delivered++;
+            }
+        }
+        WiiIRFrameEvent f = irFrame.getAndSet(null);
+        if (f != null)
+        {
+            target.wiiIRFrameInput(f);
+            delivered++;
+        }
+        return delivered;
+    }
+
+    public void wiiButtonPress(WiiButtonEvent e)
+    {
+        buttons.add(e);
+    }
+
+    public void wiiButtonRelease(WiiButtonEvent e)
+    {
+        buttons.add(e);
+    }
+
+    public void wiiButtonsChanged(WiiButtonsChangedEvent e)
+    {
+        buttons.add(e);
+    }
+
+    public void wiiIRInput(WiiIREvent e)
+    {
+        ir.set(e.getLightSource() & 3, e.detach());
+    }
+
+    public void wiiIRFrameInput(WiiIRFrameEvent e)
+    {
+        irFrame.set(e.detach());
+    }
+
+    public void wiiAccelInput(WiiAccelerateEvent e)
+    {
+        accel.set(e.detach());
+    }
+
+    public void wiiNunchukAccelInput(WiiAccelerateEvent e)
+    {
+        nunchukAccel.set(e.detach());
+    }
+
+    public void wiiNunchukJoystickInput(WiiNunchukJoystickEvent e)
+    {
+        joystick.set(e);
+    }
+}
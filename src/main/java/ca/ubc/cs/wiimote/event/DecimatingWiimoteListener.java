@@ -0,0 +1,281 @@
+package ca.ubc.cs.wiimote.event;
+
+import java.util.Arrays;
+
+/**
+ * Wraps a WiimoteListener so that it gets the continuous streams at a lower rate than the
+ * wiimote reports them. A rate is set per stream with setRate(); the samples arriving
+ * within each period are combined by a Reducer into one event. There is no timer: the
+ * reduced event is delivered with the first sample after the period ended, so the samples
+ * of a last, partial period are lost when a stream stops, and samples older than two
+ * periods are discarded rather than merged into the next event. Streams without a rate,
+ * and button events, are passed through unchanged. The delegate is called on the wiimote's
+ * receive thread. Keeps one window per stream, so an instance should be attached to a
+ * single wiimote. Normally created through Wiimote.addDecimatingListener().
+ */
+public class DecimatingWiimoteListener implements WiimoteListener
+{
+    final protected WiimoteListener delegate;
+    //indexed by WiiEventType ordinal, null for streams passed through; copy-on-write
+    protected volatile Window[] windows = new Window[WiiEventType.values().length];
+
+    public DecimatingWiimoteListener(WiimoteListener delegate)
+    {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Returns the listener the reduced events are delivered to.
+     */
+    public WiimoteListener getDelegate()
+    {
+        return delegate;
+    }
+
+    /**
+     * Delivers the given stream at most hz times a second, combining the samples of each
+     * period with the reducer. IR events are reduced separately per light source. A rate
+     * of 0 or less passes the stream through again. Buttons can't be rate limited.
+     */
+    public synchronized void setRate(WiiEventType type, double hz, Reducer reducer)
+    {
+        if (type == WiiEventType.BUTTON || type == WiiEventType.BUTTONS_CHANGED)
+            throw new IllegalArgumentException("button events can't be rate limited");
+        Window[] w = Arrays.copyOf(windows, windows.length);
+        w[type.ordinal()] = hz > 0 ? new Window((long) (1e9 / hz), reducer) : null;
+        windows = w;
+    }
+
+    public void wiiButtonPress(WiiButtonEvent e)
+    {
+        delegate.wiiButtonPress(e);
+    }
+
+    public void wiiButtonRelease(WiiButtonEvent e)
+    {
+        delegate.wiiButtonRelease(e);
+    }
+
+    public void wiiButtonsChanged(WiiButtonsChangedEvent e)
+    {
+        delegate.wiiButtonsChanged(e);
+    }
+
+    public void wiiAccelInput(WiiAccelerateEvent e)
+    {
+        Window w = windows[WiiEventType.ACCEL.ordinal()];
+        if (w == null)
+            delegate.wiiAccelInput(e);
+        else if (w.add(0, e.x, e.y, e.z, e.x * e.x + e.y * e.y + e.z * e.z, e.getWiimote().getLastReportTime()))
+            delegate.wiiAccelInput(w.accelEvent(e));
+    }
+
+    public void wiiNunchukAccelInput(WiiAccelerateEvent e)
+    {
+        Window w = windows[WiiEventType.NUNCHUK_ACCEL.ordinal()];
+        if (w == null)
+            delegate.wiiNunchukAccelInput(e);
+        else if (w.add(0, e.x, e.y, e.z, e.x * e.x + e.y * e.y + e.z * e.z, e.getWiimote().getLastReportTime()))
+            delegate.wiiNunchukAccelInput(w.accelEvent(e));
+    }
+
+    public void wiiNunchukJoystickInput(WiiNunchukJoystickEvent e)
+    {
+        Window w = windows[WiiEventType.NUNCHUK_JOYSTICK.ordinal()];
+        if (w == null)
+            delegate.wiiNunchukJoystickInput(e);
+        else if (w.add(0, e.x, e.y, 0, e.x * e.x + e.y * e.y, e.getWiimote().getLastReportTime()))
+            delegate.wiiNunchukJoystickInput(new WiiNunchukJoystickEvent(e.getWiimote(), (int) Math.round(w.a[0]), (int) Math.round(w.b[0])));
+    }
+
+    /**
+     * Each light source has a period of its own. The magnitude of an IR sample is its
+     * size.
+     */
+    public void wiiIRInput(WiiIREvent e)
+    {
+        Window w = windows[WiiEventType.IR.ordinal()];
+        if (w == null)
+            delegate.wiiIRInput(e);
+        else
+        {
+            int slot = e.getLightSource() & 3;
+            if (w.add(slot, e.x, e.y, e.size, e.size, e.getWiimote().getLastReportTime()))
+                delegate.wiiIRInput(new WiiIREvent(e.getWiimote(), e.getLightSource(), (int) Math.round(w.a[slot]), (int) Math.round(w.b[slot]), (int) Math.round(w.c[slot])));
+        }
+    }
+
+    /**
+     * Each light source is reduced over the frames in which it was visible, and is visible
+     * in the reduced frame if it was in any of them.
+     */
+    public void wiiIRFrameInput(WiiIRFrameEvent e)
+    {
+        Window w = windows[WiiEventType.IR_FRAME.ordinal()];
+        if (w == null)
+        {
+            delegate.wiiIRFrameInput(e);
+            return;
+        }
+        if (w.expire(0, e.getTimestamp()))
+            for (int slot = 1; slot < WiiIRFrameEvent.SLOTS; slot++)
+                w.count[slot] = 0;
+        for (int slot = 0; slot < WiiIRFrameEvent.SLOTS; slot++)
+            if (e.isVisible(slot))
+                w.accumulate(slot, e.getX(slot), e.getY(slot), e.getSize(slot), e.getSize(slot));
+        if (!w.due(0, e.getTimestamp()))
+            return;
+        WiiIRFrameEvent frame = new WiiIRFrameEvent(e.getWiimote());
+        for (int slot = 0; slot < WiiIRFrameEvent.SLOTS; slot++)
+        {
+            boolean visible = w.reduce(slot);
+            frame.setSlot(slot, visible, (int) Math.round(w.a[slot]), (int) Math.round(w.b[slot]), (int) Math.round(w.c[slot]));
+        }
+        frame.setTimestamp(e.getTimestamp());
+        delegate.wiiIRFrameInput(frame);
+    }
+
+    /**
+     * How the samples of one period are combined.
+     */
+    public enum Reducer
+    {
+        /**
+         * The mean of the samples.
+         */
+        AVERAGE,
+        /**
+         * The most recent sample.
+         */
+        LAST,
+        /**
+         * The sample of the largest magnitude, e.g. the strongest acceleration.
+         */
+        MAX_MAGNITUDE
+    }
+
+    /**
+     * The samples of one stream in the current period, kept per slot (light source) for IR.
+     * a, b and c hold the reduced values once a period has ended.
+     */
+    protected static class Window
+    {
+        final long periodNanos;
+        final Reducer reducer;
+        //start of the current period
+        final long[] start = new long[WiiIRFrameEvent.SLOTS];
+        final int[] count = new int[WiiIRFrameEvent.SLOTS];
+        final double[] a = new double[WiiIRFrameEvent.SLOTS];
+        final double[] b = new double[WiiIRFrameEvent.SLOTS];
+        final double[] c = new double[WiiIRFrameEvent.SLOTS];
+        final double[] magnitude = new double[WiiIRFrameEvent.SLOTS];
+
+        Window(long periodNanos, Reducer reducer)
+        {
+            this.periodNanos = periodNanos;
+            this.reducer = reducer;
+            Arrays.fill(start, Long.MIN_VALUE);
+        }
+
+        /**
+         * Adds a sample to the slot. Returns true if that ended the period, in which case
+         * the reduced values are in a, b and c.
+         */
+        boolean add(int slot, double x, double y, double z, double mag, long time)
+        {
+            expire(slot, time);
+            accumulate(slot, x, y, z, mag);
+            return due(slot, time) && reduce(slot);
+        }
+
+        /**
+         * Discards the samples of the slot if it has been quiet for two periods or more,
+         * so they don't end up in the event after the quiet spell. Returns whether it was
+         * quiet.
+         */
+        boolean expire(int slot, long time)
+        {
+            if (start[slot] == Long.MIN_VALUE || time - start[slot] < 2 * periodNanos)
+                return false;
+            count[slot] = 0;
+            return true;
+        }
+
+        void accumulate(int slot, double x, double y, double z, double mag)
+        {
+            if (count[slot] == 0)
+            {
+                a[slot] = 0;
+                b[slot] = 0;
+                c[slot] = 0;
+                magnitude[slot] = Double.NEGATIVE_INFINITY;
+            }
+            count[slot]++;
+            switch (reducer)
+            {
+                case AVERAGE:
+                    a[slot] += x;
+                    b[slot] += y;
+                    c[slot] += z;
+                    break;
+                case LAST:
+                    a[slot] = x;
+                    b[slot] = y;
+                    c[slot] = z;
+                    break;
+                case MAX_MAGNITUDE:
+                    if (mag > magnitude[slot])
+                    {
+                        magnitude[slot] = mag;
+                        a[slot] = x;
+                        b[slot] = y;
+                        c[slot] = z;
+                    }
+                    break;
+            }
+        }
+
+        /**
+         * Returns whether the slot's period has ended at time, and if so starts the next
+         * one. The first sample, and the first after a quiet spell, end a period right away
+         * so they aren't held back.
+         */
+        boolean due(int slot, long time)
+        {
+            if (start[slot] == Long.MIN_VALUE || time - start[slot] >= 2 * periodNanos)
+                start[slot] = time - periodNanos;
+            if (time - start[slot] < periodNanos)
+                return false;
+            start[slot] += periodNanos;
+            return true;
+        }
+
+        /**
+         * Turns the samples of the slot into the reduced values in a, b and c and starts
+         * collecting anew. Returns false if there were no samples.
+         */
+        boolean reduce(int slot)
+        {
+            if (count[slot] == 0)
+                return false;
+            if (reducer == Reducer.AVERAGE)
+            {
+                a[slot] /= count[slot];
+                b[slot] /= count[slot];
+                c[slot] /= count[slot];
+            }
+            count[slot] = 0;
+            return true;
+        }
+
+        WiiAccelerateEvent accelEvent(WiiAccelerateEvent e)
+        {
+            WiiAccelerateEvent reduced = new WiiAccelerateEvent(e.getWiimote(), a[0], b[0], c[0]);
+            reduced.source = e.source;
+            //the gravity estimate is already smoothed, the latest one stands for the period
+            if (e.hasGravity())
+                reduced.setGravity(e.getGravityX(), e.getGravityY(), e.getGravityZ());
+            return reduced;
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package ca.ubc.cs.wiimote.event;
+
+import ca.ubc.cs.wiimote.Wiimote;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Merges the events of many wiimotes into one stream, delivered to a single listener on a
+ * thread of its own in the order the reports were received. Every wiimote's receive thread
+ * stamps its events with the System.nanoTime() of their report and adds them to a shared
+ * bounded queue. The consumer holds events back for a reorder window, so an event that was
+ * received earlier but queued a little later by another controller's thread still comes
+ * out in order. Events that arrive after the window has passed them by are delivered
+ * anyway and counted as late.
+ *
+ * If the consumer falls behind and the queue fills up, accel, IR and joystick events are
+ * dropped and counted; button events wait for room. getContendedCount() tells how often a
+ * receive thread found the queue locked by another, which grows with the number of
+ * controllers feeding it.
+ */
+public class MergedWiimoteStream
+{
+    final protected WiimoteListener target;
+    final protected long windowNanos;
+    final protected Map<Wiimote, Source> sources = new ConcurrentHashMap<Wiimote, Source>();
+
+    //the queue shared by all receive threads, guarded by lock
+    final protected ReentrantLock lock = new ReentrantLock();
+    final protected Condition notEmpty = lock.newCondition();
+    final protected Condition notFull = lock.newCondition();
+    final protected long[] ringTimes, ringOrder;
+    final protected WiiEvent[] ringEvents;
+    protected int head, count;
+    //arrival order in the queue, breaks ties between events of the same report
+    protected long order;
+    protected boolean running;
+    protected long enqueued, contended, dropped;
+
+    //events held back for the reorder window, a binary heap by time and order; only used
+    //by the consumer thread
+    final protected long[] heapTimes, heapOrder;
+    final protected WiiEvent[] heapEvents;
+    protected int heapSize;
+    //events taken from the queue in one go, only used by the consumer thread
+    final protected long[] batchTimes, batchOrder;
+    final protected WiiEvent[] batchEvents;
+    protected long lastDeliveredTime = Long.MIN_VALUE;
+    protected volatile long delivered, late;
+    final protected Thread consumer;
+
+    /**
+     * Creates a stream delivering to target. capacity bounds both the shared queue and the
+     * events held back for reordering.
+     */
+    public MergedWiimoteStream(WiimoteListener target, int capacity, long reorderWindowMicros)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be at least 1");
+        this.target = target;
+        windowNanos = TimeUnit.MICROSECONDS.toNanos(reorderWindowMicros);
+        ringTimes = new long[capacity];
+        ringOrder = new long[capacity];
+        ringEvents = new WiiEvent[capacity];
+        heapTimes = new long[capacity];
+        heapOrder = new long[capacity];
+        heapEvents = new WiiEvent[capacity];
+        batchTimes = new long[capacity];
+        batchOrder = new long[capacity];
+        batchEvents = new WiiEvent[capacity];
+        running = true;
+        consumer = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                consume();
+            }
+        }, "MergedWiimoteStream");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Adds the events of the given types from the wiimote to the stream (the default
+     * subscription if none are given).
+     */
+    public void add(Wiimote wiimote, WiiEventType... types)
+    {
+        Source source = new Source(wiimote);
+        if (sources.putIfAbsent(wiimote, source) == null)
+            wiimote.addListener(source, types);
+    }
+
+    public void remove(Wiimote wiimote)
+    {
+        Source source = sources.remove(wiimote);
+        if (source != null)
+            wiimote.removeListener(source);
+    }
+
+    /**
+     * Detaches from all wiimotes and stops the consumer thread. Events not yet delivered
+     * are discarded.
+     */
+    public void close()
+    {
+        for (Wiimote wiimote : sources.keySet())
+            remove(wiimote);
+        lock.lock();
+        try
+        {
+            running = false;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many events were added to the queue.
+     */
+    public long getEnqueuedCount()
+    {
+        lock.lock();
+        try
+        {
+            return enqueued;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many times a receive thread had to wait for another to finish with the
+     * queue.
+     */
+    public long getContendedCount()
+    {
+        lock.lock();
+        try
+        {
+            return contended;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many events were discarded because the queue was full.
+     */
+    public long getDroppedCount()
+    {
+        lock.lock();
+        try
+        {
+            return dropped;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public long getDeliveredCount()
+    {
+        return delivered;
+    }
+
+    /**
+     * Returns how many events were delivered after an event with a later timestamp,
+     * because they reached the consumer after the reorder window.
+     */
+    public long getLateCount()
+    {
+        return late;
+    }
+
+    /**
+     * Queues the event with the time of its report. Is called on the wiimote's receive
+     * thread.
+     */
+    protected void offer(WiiEvent e, long time)
+    {
+        if (!lock.tryLock())
+        {
+            lock.lock();
+            contended++;
+        }
+        try
+        {
+            while (count == ringEvents.length && running)
+            {
+                if (!AsyncWiimoteListener.isButtonEvent(e))
+                {
+                    dropped++;
+                    return;
+                }
+                notFull.awaitUninterruptibly();
+            }
+            if (!running)
+                return;
+            int index = (head + count) % ringEvents.length;
+            ringTimes[index] = time;
+            ringOrder[index] = order++;
+            ringEvents[index] = e;
+            enqueued++;
+            if (count++ == 0)
+                notEmpty.signal();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    protected void consume()
+    {
+        while (true)
+        {
+            int n;
+            lock.lock();
+            try
+            {
+                //wait for new events, or until the earliest held event is due
+                while (count == 0 && running)
+                {
+                    if (heapSize == 0)
+                        notEmpty.await();
+                    else
+                    {
+                        long wait = heapTimes[0] + windowNanos - System.nanoTime();
+                        if (wait <= 0)
+                            break;
+                        notEmpty.awaitNanos(wait);
+                    }
+                }
+                if (!running)
+                    return;
+                n = count;
+                for (int i = 0; i < n; i++)
+                {
+                    int index = (head + i) % ringEvents.length;
+                    batchTimes[i] = ringTimes[index];
+                    batchOrder[i] = ringOrder[index];
+                    batchEvents[i] = ringEvents[index];
+                    ringEvents[index] = null;
+                }
+                head = (head + n) % ringEvents.length;
+                count = 0;
+                notFull.signalAll();
+            } catch (InterruptedException ie)
+            {
+                continue;
+            } finally
+            {
+                lock.unlock();
+            }
+
+            for (int i = 0; i < n; i++)
+            {
+                if (heapSize == heapEvents.length)
+                    deliverEarliest();
+                push(batchTimes[i], batchOrder[i], batchEvents[i]);
+                batchEvents[i] = null;
+            }
+            long now = System.nanoTime();
+            while (heapSize > 0 && heapTimes[0] + windowNanos <= now)
+                deliverEarliest();
+        }
+    }
+
+    /**
+     * Takes the earliest held event off the heap and delivers it to the target
+     */
+    protected void deliverEarliest()
+    {
+        long time = heapTimes[0];
+        WiiEvent e = heapEvents[0];
+        heapSize--;
+        move(heapSize, 0);
+        heapEvents[heapSize] = null;
+        siftDown(0);
+
+        if (time < lastDeliveredTime)
+            late++;
+        else
+            lastDeliveredTime = time;
+        delivered++;
+        try
+        {
+            AsyncWiimoteListener.deliver(target, e);
+        } catch (RuntimeException ex)
+        {
+            System.out.println("MergedWiimoteStream exception in listener: " + ex);
+        }
+    }
+
+    protected void push(long time, long order, WiiEvent e)
+    {
+        int i = heapSize++;
+        heapTimes[i] = time;
+        heapOrder[i] = order;
+        heapEvents[i] = e;
+        while (i > 0)
+        {
+            int parent = (i - 1) / 2;
+            if (!before(i, parent))
+                break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    protected void siftDown(int i)
+    {
+        while (true)
+        {
+            int first = i;
+            int left = 2 * i + 1;
+            if (left < heapSize && before(left, first))
+                first = left;
+            if (left + 1 < heapSize && before(left + 1, first))
+                first = left + 1;
+            if (first == i)
+                return;
+            swap(i, first);
+            i = first;
+        }
+    }
+
+    protected boolean before(int a, int b)
+    {
+        return heapTimes[a] < heapTimes[b] || (heapTimes[a] == heapTimes[b] && heapOrder[a] < heapOrder[b]);
+    }
+
+    protected void move(int from, int to)
+    {
+        heapTimes[to] = heapTimes[from];
+        heapOrder[to] = heapOrder[from];
+        heapEvents[to] = heapEvents[from];
+    }
+
+    protected void swap(int a, int b)
+    {
+        long time = heapTimes[a];
+        long order = heapOrder[a];
+        WiiEvent e = heapEvents[a];
+        move(b, a);
+        heapTimes[b] = time;
+        heapOrder[b] = order;
+        heapEvents[b] = e;
+    }
+
+    /**
+     * Listens to one wiimote and stamps its events with the time of their report
+     */
+    protected class Source implements WiimoteListener
+    {
+        final protected Wiimote wiimote;
+
+        Source(Wiimote wiimote)
+        {
+            this.wiimote = wiimote;
+        }
+
+        public void wiiButtonPress(WiiButtonEvent e)
+        {
+            offer(e, wiimote.getLastReportTime());
+        }
+
+        public void wiiButtonRelease(WiiButtonEvent e)
+        {
+            offer(e, wiimote.getLastReportTime());
+        }
+
+        public void wiiButtonsChanged(WiiButtonsChangedEvent e)
+        {
+            offer(e, wiimote.getLastReportTime());
+        }
+
+        public void wiiIRInput(WiiIREvent e)
+        {
+            offer(e.detach(), wiimote.getLastReportTime());
+        }
+
+        public void wiiIRFrameInput(WiiIRFrameEvent e)
+        {
+            offer(e.detach(), wiimote.getLastReportTime());
+        }
+
+        public void wiiAccelInput(WiiAccelerateEvent e)
+        {
+            offer(e.detach(), wiimote.getLastReportTime());
+        }
+
+        public void wiiNunchukAccelInput(WiiAccelerateEvent e)
+        {
+            offer(e.detach(), wiimote.getLastReportTime());
+        }
+
+        public void wiiNunchukJoystickInput(WiiNunchukJoystickEvent e)
+        {
+            offer(e, wiimote.getLastReportTime());
+        }
+    }
+}
@@ -22,15 +22,25 @@ package ca.ubc.cs.wiimote.event;
 import ca.ubc.cs.wiimote.Wiimote;
 
 /**
- * Represents an occurrence of a wiimote acceleration event.
+ * Represents an occurrence of a wiimote acceleration event. Besides the raw axes it offers
+ * the orientation derived from them, which is worked out on first use and then cached, so
+ * any number of listeners sharing the event share the work.
  */
 public class WiiAccelerateEvent extends WiiEvent
 {
     /**
-     * Store the magnitudes of the acceleration values in the three axes.
+     * Store the magnitudes of the acceleration values in the three axes. If you change
+     * them, use set() so the cached orientation is recomputed.
      */
     public double x, y, z;
     public EventSource source;
+    //the gravity part of the sample, if the wiimote separates it, see Wiimote.setGravityFilter
+    protected double gravityX, gravityY, gravityZ;
+    protected boolean hasGravity;
+    //cached by computeOrientation; written before orientationKnown so other threads see them
+    protected double pitch, roll, tilt, magnitude;
+    protected volatile boolean orientationKnown;
+
     public WiiAccelerateEvent(Wiimote s, double x, double y, double z)
     {
         super(s);
@@ -39,6 +49,160 @@ public class WiiAccelerateEvent extends WiiEvent
         this.z = z;
     }
 
+    /**
+     * Replaces the sample, dropping the cached orientation and any gravity part.
+     */
+    public void set(double x, double y, double z)
+    {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        gravityX = 0;
+        gravityY = 0;
+        gravityZ = 0;
+        hasGravity = false;
+        orientationKnown = false;
+    }
+
+    /**
+     * Sets the gravity part of the sample, as estimated by the wiimote's gravity
+     * separation. Orientation is then derived from gravity alone.
+     */
+    public void setGravity(double x, double y, double z)
+    {
+        gravityX = x;
+        gravityY = y;
+        gravityZ = z;
+        hasGravity = true;
+        orientationKnown = false;
+    }
+
+    /**
+     * Returns whether the gravity and motion parts of this sample are known.
+     */
+    public boolean hasGravity()
+    {
+        return hasGravity;
+    }
+
+    public double getGravityX()
+    {
+        return gravityX;
+    }
+
+    public double getGravityY()
+    {
+        return gravityY;
+    }
+
+    public double getGravityZ()
+    {
+        return gravityZ;
+    }
+
+    /**
+     * Returns the acceleration along x caused by moving the wiimote, i.e. with gravity
+     * taken out. Without gravity separation this is just x.
+     */
+    public double getMotionX()
+    {
+        return x - gravityX;
+    }
+
+    public double getMotionY()
+    {
+        return y - gravityY;
+    }
+
+    public double getMotionZ()
+    {
+        return z - gravityZ;
+    }
+
+    /**
+     * Returns the rotation about the x axis in radians, positive when the front end (y)
+     * points up. Only meaningful while the wiimote isn't being swung around, or with
+     * gravity separation on.
+     */
+    public double getPitch()
+    {
+        computeOrientation();
+        return pitch;
+    }
+
+    /**
+     * Returns the rotation about the y axis in radians, atan2(x, z).
+     */
+    public double getRoll()
+    {
+        computeOrientation();
+        return roll;
+    }
+
+    /**
+     * Returns the angle in radians between the z axis and the vertical, regardless of
+     * direction: 0 when lying flat face up, pi when face down.
+     */
+    public double getTilt()
+    {
+        computeOrientation();
+        return tilt;
+    }
+
+    /**
+     * Returns the length of the acceleration vector in g, about 1 while at rest.
+     */
+    public double getMagnitude()
+    {
+        computeOrientation();
+        return magnitude;
+    }
+
+    protected void computeOrientation()
+    {
+        if (orientationKnown)
+            return;
+        double gx = hasGravity ? gravityX : x;
+        double gy = hasGravity ? gravityY : y;
+        double gz = hasGravity ? gravityZ : z;
+        double horizontal = Math.sqrt(gx * gx + gz * gz);
+        pitch = Math.atan2(gy, horizontal);
+        roll = Math.atan2(gx, gz);
+        tilt = Math.atan2(Math.sqrt(gx * gx + gy * gy), gz);
+        magnitude = Math.sqrt(x * x + y * y + z * z);
+        orientationKnown = true;
+    }
+
+    /**
+     * Returns a detached copy of this event. Use this to keep an event past the end of
+     * the listener callback when the wiimote is reusing its event instances.
+     */
+    public WiiAccelerateEvent copy()
+    {
+        WiiAccelerateEvent event = new WiiAccelerateEvent(wiimote, x, y, z);
+        event.source = source;
+        if (hasGravity)
+            event.setGravity(gravityX, gravityY, gravityZ);
+        if (orientationKnown)
+        {
+            event.pitch = pitch;
+            event.roll = roll;
+            event.tilt = tilt;
+            event.magnitude = magnitude;
+            event.orientationKnown = true;
+        }
+        return event;
+    }
+
+    /**
+     * Returns this event, or a copy of it if it is reused. Listeners that keep events
+     * after the callback returns go through this.
+     */
+    public WiiAccelerateEvent detach()
+    {
+        return isReused() ? copy() : this;
+    }
+
     public enum EventSource
     {
         WII_REMOTE, NUNCHUK
@@ -22,7 +22,8 @@ package ca.ubc.cs.wiimote.event;
 import ca.ubc.cs.wiimote.Wiimote;
 
 /**
- * Represents a wii button event. Not that not all buttons have been implemented (only A, B, 1 and 2).
+ * Represents a wii button event: one button being pressed or released. Every wii remote
+ * button and the nunchuk's C and Z buttons are reported.
  */
 public class WiiButtonEvent extends WiiEvent
 {
@@ -52,6 +53,28 @@ public class WiiButtonEvent extends WiiEvent
 
     public enum Button
     {
-        B_A, B_B, B_1, B_2, B_C, B_Z
+        B_A(0x0008), B_B(0x0004), B_1(0x0002), B_2(0x0001), B_C(0x20000), B_Z(0x10000),
+        B_LEFT(0x0100), B_RIGHT(0x0200), B_DOWN(0x0400), B_UP(0x0800),
+        B_PLUS(0x1000), B_MINUS(0x0010), B_HOME(0x0080);
+
+        /**
+         * The mask of all wii remote buttons.
+         */
+        public static final int CORE_MASK = 0x1F9F;
+        /**
+         * The mask of the nunchuk buttons.
+         */
+        public static final int NUNCHUK_MASK = 0x30000;
+
+        /**
+         * The bit representing this button in a button mask. Core buttons use their bit
+         * in the 2 button bytes of a report, nunchuk buttons sit above those.
+         */
+        public final int mask;
+
+        Button(int mask)
+        {
+            this.mask = mask;
+        }
     }
 }
@@ -0,0 +1,57 @@
+package ca.ubc.cs.wiimote.event;
+
+import ca.ubc.cs.wiimote.Wiimote;
+
+/**
+ * Represents a change in the state of one or more buttons. One of these is sent per report
+ * in which anything changed, instead of a WiiButtonEvent per button. Both masks are made
+ * of WiiButtonEvent.Button mask values.
+ */
+public class WiiButtonsChangedEvent extends WiiEvent
+{
+    protected int pressedMask;
+    protected int changedMask;
+
+    public WiiButtonsChangedEvent(Wiimote w, int pressedMask, int changedMask)
+    {
+        super(w);
+        this.pressedMask = pressedMask;
+        this.changedMask = changedMask;
+    }
+
+    /**
+     * Returns the mask of the buttons that are held down after the change.
+     */
+    public int getPressedMask()
+    {
+        return pressedMask;
+    }
+
+    /**
+     * Returns the mask of the buttons whose state changed.
+     */
+    public int getChangedMask()
+    {
+        return changedMask;
+    }
+
+    public boolean isPressed(WiiButtonEvent.Button b)
+    {
+        return (pressedMask & b.mask) != 0;
+    }
+
+    public boolean wasPressed(WiiButtonEvent.Button b)
+    {
+        return (changedMask & pressedMask & b.mask) != 0;
+    }
+
+    public boolean wasReleased(WiiButtonEvent.Button b)
+    {
+        return (changedMask & ~pressedMask & b.mask) != 0;
+    }
+
+    public String toString()
+    {
+        return "WiiButtonsChangedEvent [" + Integer.toHexString(pressedMask) + " " + Integer.toHexString(changedMask) + "]";
+    }
+}
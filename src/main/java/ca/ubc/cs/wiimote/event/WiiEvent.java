@@ -34,4 +34,9 @@ public class WiiEvent {
 	public Wiimote getWiimote() {
 		return wiimote;
 	}
+	
+	///Returns whether this is an instance the wiimote reuses for its next report, see Wiimote.setEventReuse().
+	public boolean isReused() {
+		return wiimote != null && wiimote.isReusingEvents();
+	}
 }
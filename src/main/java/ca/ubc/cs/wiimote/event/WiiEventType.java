@@ -0,0 +1,35 @@
+package ca.ubc.cs.wiimote.event;
+
+/**
+ * The kinds of events a Wiimote dispatches to its WiimoteListeners. A Wiimote keeps a
+ * separate listener table for each of these.
+ */
+public enum WiiEventType
+{
+    BUTTON, IR, ACCEL, NUNCHUK_ACCEL, NUNCHUK_JOYSTICK,
+    /**
+     * One WiiIRFrameEvent per report. Not part of the default subscription, so listeners
+     * have to ask for it explicitly.
+     */
+    IR_FRAME(false),
+    /**
+     * One WiiButtonsChangedEvent per report in which any button changed. Not part of the
+     * default subscription; listeners that subscribe to it usually leave BUTTON out.
+     */
+    BUTTONS_CHANGED(false);
+
+    /**
+     * Whether Wiimote.addListener(WiimoteListener) subscribes to this type.
+     */
+    public final boolean subscribedByDefault;
+
+    WiiEventType()
+    {
+        this(true);
+    }
+
+    WiiEventType(boolean subscribedByDefault)
+    {
+        this.subscribedByDefault = subscribedByDefault;
+    }
+}
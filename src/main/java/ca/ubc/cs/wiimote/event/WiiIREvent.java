@@ -47,6 +47,24 @@ public class WiiIREvent extends WiiEvent {
 		this.size = size;
 	}
 	
+	///Overwrites the contents of this event. Used by Wiimote when it is reusing its event instances.
+	public void set(int lightSource, int x, int y, int size) {
+		this.lightSource = lightSource;
+		this.x = x;
+		this.y = y;
+		this.size = size;
+	}
+	
+	///Returns a detached copy of this event. Use this to keep an event past the end of the listener callback.
+	public WiiIREvent copy() {
+		return new WiiIREvent(wiimote, lightSource, x, y, size);
+	}
+	
+	///Returns this event, or a copy of it if it is reused. Listeners that keep events after the callback returns go through this.
+	public WiiIREvent detach() {
+		return isReused() ? copy() : this;
+	}
+	
 	///Returns the index of the current light source, as determined by the wiimote
 	public int getLightSource() {
 		return lightSource;
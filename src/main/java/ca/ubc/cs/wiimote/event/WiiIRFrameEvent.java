@@ -0,0 +1,122 @@
+package ca.ubc.cs.wiimote.event;
+
+import ca.ubc.cs.wiimote.Wiimote;
+
+/**
+ * Represents all four IR light source slots of a single report. Unlike WiiIREvent, which
+ * is fired once per visible light source, one of these is fired per report, so the slots
+ * are always a consistent snapshot.
+ */
+public class WiiIRFrameEvent extends WiiEvent
+{
+    public static final int SLOTS = 4;
+
+    final int[] x = new int[SLOTS];
+    final int[] y = new int[SLOTS];
+    final int[] size = new int[SLOTS];
+    int visibleMask;
+    long timestamp;
+
+    public WiiIRFrameEvent(Wiimote wiimote)
+    {
+        super(wiimote);
+    }
+
+    /**
+     * Returns a bitmask with bit n set if light source n is visible.
+     */
+    public int getVisibleMask()
+    {
+        return visibleMask;
+    }
+
+    public boolean isVisible(int slot)
+    {
+        return (visibleMask & (1 << slot)) != 0;
+    }
+
+    /**
+     * Returns the number of visible light sources.
+     */
+    public int getVisibleCount()
+    {
+        return Integer.bitCount(visibleMask);
+    }
+
+    /**
+     * Returns the x position of the given light source, from 0-1023.
+     */
+    public int getX(int slot)
+    {
+        return x[slot];
+    }
+
+    /**
+     * Returns the y position of the given light source, from 0-767.
+     */
+    public int getY(int slot)
+    {
+        return y[slot];
+    }
+
+    public int getSize(int slot)
+    {
+        return size[slot];
+    }
+
+    /**
+     * Returns the System.nanoTime() at which the report was received.
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * Stores one slot of the frame. Used by Wiimote while decoding a report.
+     */
+    public void setSlot(int slot, boolean visible, int x, int y, int size)
+    {
+        this.x[slot] = x;
+        this.y[slot] = y;
+        this.size[slot] = size;
+        if (visible)
+            visibleMask |= 1 << slot;
+        else
+            visibleMask &= ~(1 << slot);
+    }
+
+    public void setTimestamp(long timestamp)
+    {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Returns a detached copy of this event. Use this to keep an event past the end of
+     * the listener callback when the wiimote is reusing its event instances.
+     */
+    public WiiIRFrameEvent copy()
+    {
+        WiiIRFrameEvent event = new WiiIRFrameEvent(wiimote);
+        System.arraycopy(x, 0, event.x, 0, SLOTS);
+        System.arraycopy(y, 0, event.y, 0, SLOTS);
+        System.arraycopy(size, 0, event.size, 0, SLOTS);
+        event.visibleMask = visibleMask;
+        event.timestamp = timestamp;
+        return event;
+    }
+
+    /**
+     * Returns this event, or a copy of it if it is reused. Listeners that keep events
+     * after the callback returns go through this.
+     */
+    public WiiIRFrameEvent detach()
+    {
+        return isReused() ? copy() : this;
+    }
+
+    public String toString()
+    {
+        return "WiiIRFrameEvent [" + Integer.toBinaryString(visibleMask) + " " + timestamp + "]";
+    }
+}
@@ -38,4 +38,10 @@ public interface WiimoteListener {
 	public void wiiNunchukAccelInput(WiiAccelerateEvent e);
 	
 	public void wiiNunchukJoystickInput(WiiNunchukJoystickEvent e);
+
+	///Is called once per report with all IR light sources. Only called for listeners subscribed to WiiEventType.IR_FRAME.
+	default void wiiIRFrameInput(WiiIRFrameEvent e) {}
+
+	///Is called once per report in which any button changed. Only called for listeners subscribed to WiiEventType.BUTTONS_CHANGED.
+	default void wiiButtonsChanged(WiiButtonsChangedEvent e) {}
 }
@@ -0,0 +1,254 @@
+package ca.ubc.cs.wiimote.event;
+
+import ca.ubc.cs.wiimote.Wiimote;
+import ca.ubc.cs.wiimote.WiimoteConnectionListener;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the events of a Wiimote as a java.util.concurrent.Flow.Publisher, so a reactive
+ * pipeline can pull them at its own pace. Each subscriber gets its own buffer. While a
+ * subscriber has no outstanding demand, up to bufferSize accel, IR and joystick events
+ * are held for it; past that they are conflated, each new event replacing the newest held
+ * event of the same stream (or the oldest held event if there is none). Button events are
+ * never dropped. Subscribers are completed once the wiimote is closed with cleanup(), after
+ * the events held for them. Normally created through Wiimote.publisher().
+ */
+public class WiimotePublisher implements Flow.Publisher<WiiEvent>
+{
+    final protected Wiimote wiimote;
+    final protected int bufferSize;
+    final protected WiiEventType[] types;
+
+    public WiimotePublisher(Wiimote wiimote, int bufferSize, WiiEventType... types)
+    {
+        if (bufferSize < 1)
+            throw new IllegalArgumentException("bufferSize must be at least 1");
+        this.wiimote = wiimote;
+        this.bufferSize = bufferSize;
+        this.types = types.clone();
+    }
+
+    public void subscribe(Flow.Subscriber<? super WiiEvent> subscriber)
+    {
+        if (subscriber == null)
+            throw new NullPointerException("subscriber");
+        WiimoteSubscription subscription = new WiimoteSubscription(subscriber);
+        //attached before onSubscribe, so a cancel from within it detaches for good
+        wiimote.addConnectionListener(subscription);
+        wiimote.addListener(subscription, types);
+        subscriber.onSubscribe(subscription);
+        if (wiimote.isClosed())
+            subscription.complete();
+    }
+
+    /**
+     * The link between the wiimote and one subscriber. It listens to the wiimote and hands
+     * events over as the subscriber requests them.
+     */
+    protected class WiimoteSubscription implements Flow.Subscription, WiimoteListener, WiimoteConnectionListener
+    {
+        final protected Flow.Subscriber<? super WiiEvent> subscriber;
+        final protected AtomicLong demand = new AtomicLong();
+        //makes sure only one thread at a time delivers, see drain
+        final protected AtomicInteger wip = new AtomicInteger();
+        //events waiting for demand, guarded by itself
+        final protected LinkedList<WiiEvent> buffer = new LinkedList<WiiEvent>();
+        protected int conflatable;
+        protected volatile boolean cancelled;
+        //set once the wiimote is closed; onComplete follows when the buffer is empty
+        protected volatile boolean done;
+
+        WiimoteSubscription(Flow.Subscriber<? super WiiEvent> subscriber)
+        {
+            this.subscriber = subscriber;
+        }
+
+        public void request(long n)
+        {
+            if (cancelled)
+                return;
+            if (n <= 0)
+            {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("request must be positive, was " + n));
+                return;
+            }
+            long current, next;
+            do
+            {
+                current = demand.get();
+                next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            } while (!demand.compareAndSet(current, next));
+            drain();
+        }
+
+        public void cancel()
+        {
+            if (cancelled)
+                return;
+            cancelled = true;
+            wiimote.removeListener(this);
+            wiimote.removeConnectionListener(this);
+            synchronized (buffer)
+            {
+                buffer.clear();
+                conflatable = 0;
+            }
+        }
+
+        /**
+         * Stops listening and completes the subscriber once the held events are delivered
+         */
+        protected void complete()
+        {
+            if (done)
+                return;
+            done = true;
+            wiimote.removeListener(this);
+            wiimote.removeConnectionListener(this);
+            drain();
+        }
+
+        protected void offer(WiiEvent e)
+        {
+            if (cancelled)
+                return;
+            synchronized (buffer)
+            {
+                if (!AsyncWiimoteListener.isButtonEvent(e))
+                {
+                    if (conflatable >= bufferSize && !conflate(e))
+                        return;
+                    conflatable++;
+                }
+                buffer.add(e);
+            }
+            drain();
+        }
+
+        /**
+         * Makes room for e while the buffer is full. Returns false if e replaced a held
+         * event and needn't be added.
+         */
+        protected boolean conflate(WiiEvent e)
+        {
+            for (Iterator<WiiEvent> it = buffer.descendingIterator(); it.hasNext(); )
+            {
+                if (AsyncWiimoteListener.sameStream(it.next(), e))
+                {
+                    it.remove();
+                    buffer.add(e);
+                    return false;
+                }
+            }
+            for (Iterator<WiiEvent> it = buffer.iterator(); it.hasNext(); )
+            {
+                if (!AsyncWiimoteListener.isButtonEvent(it.next()))
+                {
+                    it.remove();
+                    conflatable--;
+                    return true;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Delivers held events while there is demand. Whichever thread gets here first
+         * delivers; others just leave a note for it to go round again.
+         */
+        protected void drain()
+        {
+            if (wip.getAndIncrement() != 0)
+                return;
+            int missed = 1;
+            while (true)
+            {
+                while (!cancelled && demand.get() > 0)
+                {
+                    WiiEvent e;
+                    synchronized (buffer)
+                    {
+                        e = buffer.poll();
+                        if (e != null && !AsyncWiimoteListener.isButtonEvent(e))
+                            conflatable--;
+                    }
+                    if (e == null)
+                        break;
+                    demand.decrementAndGet();
+                    subscriber.onNext(e);
+                }
+                if (done && !cancelled)
+                {
+                    boolean empty;
+                    synchronized (buffer)
+                    {
+                        empty = buffer.isEmpty();
+                    }
+                    if (empty)
+                    {
+                        cancelled = true;
+                        subscriber.onComplete();
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0)
+                    return;
+            }
+        }
+
+        public void wiiButtonPress(WiiButtonEvent e)
+        {
+            offer(e);
+        }
+
+        public void wiiButtonRelease(WiiButtonEvent e)
+        {
+            offer(e);
+        }
+
+        public void wiiButtonsChanged(WiiButtonsChangedEvent e)
+        {
+            offer(e);
+        }
+
+        public void wiiIRInput(WiiIREvent e)
+        {
+            offer(e.detach());
+        }
+
+        public void wiiIRFrameInput(WiiIRFrameEvent e)
+        {
+            offer(e.detach());
+        }
+
+        public void wiiAccelInput(WiiAccelerateEvent e)
+        {
+            offer(e.detach());
+        }
+
+        public void wiiNunchukAccelInput(WiiAccelerateEvent e)
+        {
+            offer(e.detach());
+        }
+
+        public void wiiNunchukJoystickInput(WiiNunchukJoystickEvent e)
+        {
+            offer(e);
+        }
+
+        public void wiimoteDisconnected(Wiimote w, String reason)
+        {
+        }
+
+        public void wiimoteClosed(Wiimote w)
+        {
+            complete();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package ca.ubc.cs.wiimote.event;
+
+import ca.ubc.cs.wiimote.Wiimote;
+
+/**
+ * Low level alternative to WiimoteListener. The callbacks receive the decoded values as
+ * primitives, so no event objects are created for listeners of this type. Register with
+ * Wiimote.addRawListener(). All callbacks run on the wiimote's receive thread.
+ */
+public interface WiimoteRawListener
+{
+    /**
+     * Source value passed to onAccel for the wii remote's own accelerometer.
+     */
+    public static final int SOURCE_WII_REMOTE = 0;
+    /**
+     * Source value passed to onAccel for the nunchuk's accelerometer.
+     */
+    public static final int SOURCE_NUNCHUK = 1;
+
+    /**
+     * Is called when at least one button changed state. Both masks are made of the
+     * WiiButtonEvent.Button mask values.
+     */
+    public void onButtons(Wiimote w, int pressedMask, int changedMask);
+
+    /**
+     * Is called for every accelerometer sample. nanos is the System.nanoTime() at which
+     * the report carrying the sample was received.
+     */
+    public void onAccel(Wiimote w, int source, double x, double y, double z, long nanos);
+
+    /**
+     * Is called for every visible IR source. slot is the index of the light source, 0-3.
+     */
+    public void onIR(Wiimote w, int slot, int x, int y, int size);
+
+    public void onNunchukJoystick(Wiimote w, int x, int y);
+
+    /**
+     * Is called after all the callbacks for one report have been made. nanos is the same
+     * as for onAccel.
+     */
+    default void onReportEnd(Wiimote w, long nanos)
+    {
+    }
+}
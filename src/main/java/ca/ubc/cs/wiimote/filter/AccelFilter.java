@@ -0,0 +1,23 @@
+package ca.ubc.cs.wiimote.filter;
+
+/**
+ * One stage of accelerometer filtering. A filter is run by the Wiimote on its decode
+ * thread for every sample of the stream it was set for, before the sample reaches any
+ * listener, the WiimoteState or a raw listener. Implementations keep their state in
+ * primitive fields and arrays allocated up front, so filtering allocates nothing per
+ * sample. A filter instance is stateful and belongs to a single stream.
+ * See Wiimote.setAccelFilter().
+ */
+public interface AccelFilter
+{
+    /**
+     * Filters the sample in place. sample holds x, y and z in g; nanos is the
+     * System.nanoTime() at which the report carrying it was received.
+     */
+    public void apply(double[] sample, long nanos);
+
+    /**
+     * Forgets all history, so the next sample is treated as the first.
+     */
+    public void reset();
+}
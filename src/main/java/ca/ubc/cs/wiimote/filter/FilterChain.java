@@ -0,0 +1,27 @@
+package ca.ubc.cs.wiimote.filter;
+
+/**
+ * Runs several filters one after the other, e.g. a median filter to knock out spikes
+ * followed by a low-pass to smooth what is left.
+ */
+public class FilterChain implements AccelFilter
+{
+    final protected AccelFilter[] stages;
+
+    public FilterChain(AccelFilter... stages)
+    {
+        this.stages = stages.clone();
+    }
+
+    public void apply(double[] sample, long nanos)
+    {
+        for (int i = 0; i < stages.length; i++)
+            stages[i].apply(sample, nanos);
+    }
+
+    public void reset()
+    {
+        for (AccelFilter stage : stages)
+            stage.reset();
+    }
+}
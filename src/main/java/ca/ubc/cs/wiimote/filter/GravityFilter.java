@@ -0,0 +1,67 @@
+package ca.ubc.cs.wiimote.filter;
+
+/**
+ * Separates gravity from motion in accelerometer samples. Gravity changes only as fast as
+ * the wiimote is turned, so it is estimated by a low-pass filter with the given time
+ * constant; what is left of a sample after subtracting it is motion. Longer time constants
+ * give a steadier gravity estimate but follow turning more slowly. Unlike an AccelFilter
+ * it leaves the samples alone. See Wiimote.setGravityFilter().
+ */
+public class GravityFilter
+{
+    final protected double timeConstantNanos;
+    final protected double[] gravity = new double[3];
+    protected long lastNanos;
+    protected boolean primed;
+
+    public GravityFilter(double timeConstantMillis)
+    {
+        if (timeConstantMillis <= 0)
+            throw new IllegalArgumentException("timeConstantMillis must be positive");
+        timeConstantNanos = timeConstantMillis * 1e6;
+    }
+
+    /**
+     * Adds a sample received at the given System.nanoTime() to the gravity estimate.
+     */
+    public void update(double x, double y, double z, long nanos)
+    {
+        if (!primed)
+        {
+            gravity[0] = x;
+            gravity[1] = y;
+            gravity[2] = z;
+            lastNanos = nanos;
+            primed = true;
+            return;
+        }
+        long dt = nanos - lastNanos;
+        if (dt <= 0)
+            return;
+        lastNanos = nanos;
+        double alpha = dt / (timeConstantNanos + dt);
+        gravity[0] += alpha * (x - gravity[0]);
+        gravity[1] += alpha * (y - gravity[1]);
+        gravity[2] += alpha * (z - gravity[2]);
+    }
+
+    public double getX()
+    {
+        return gravity[0];
+    }
+
+    public double getY()
+    {
+        return gravity[1];
+    }
+
+    public double getZ()
+    {
+        return gravity[2];
+    }
+
+    public void reset()
+    {
+        primed = false;
+    }
+}
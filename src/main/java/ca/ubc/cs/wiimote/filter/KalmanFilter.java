@@ -0,0 +1,47 @@
+package ca.ubc.cs.wiimote.filter;
+
+/**
+ * A scalar Kalman filter per axis, modelling the acceleration as a constant disturbed by
+ * noise. processNoise is how much the true value is expected to change between samples,
+ * measurementNoise how noisy the sensor is, both as variances in g squared. A higher ratio of
+ * process to measurement noise follows the samples more closely.
+ */
+public class KalmanFilter implements AccelFilter
+{
+    final protected double processNoise, measurementNoise;
+    final protected double[] estimate = new double[3];
+    final protected double[] variance = new double[3];
+    protected boolean primed;
+
+    public KalmanFilter(double processNoise, double measurementNoise)
+    {
+        if (processNoise <= 0 || measurementNoise <= 0)
+            throw new IllegalArgumentException("noise variances must be positive");
+        this.processNoise = processNoise;
+        this.measurementNoise = measurementNoise;
+    }
+
+    public void apply(double[] sample, long nanos)
+    {
+        for (int axis = 0; axis < 3; axis++)
+        {
+            if (!primed)
+            {
+                estimate[axis] = sample[axis];
+                variance[axis] = measurementNoise;
+                continue;
+            }
+            double p = variance[axis] + processNoise;
+            double gain = p / (p + measurementNoise);
+            estimate[axis] += gain * (sample[axis] - estimate[axis]);
+            variance[axis] = (1 - gain) * p;
+            sample[axis] = estimate[axis];
+        }
+        primed = true;
+    }
+
+    public void reset()
+    {
+        primed = false;
+    }
+}
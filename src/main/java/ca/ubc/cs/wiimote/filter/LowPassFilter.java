@@ -0,0 +1,37 @@
+package ca.ubc.cs.wiimote.filter;
+
+/**
+ * Exponential low-pass filter: each output moves the given fraction alpha of the way from
+ * the previous output towards the new sample. Smaller values smooth more and lag more.
+ */
+public class LowPassFilter implements AccelFilter
+{
+    final protected double alpha;
+    final protected double[] value = new double[3];
+    protected boolean primed;
+
+    public LowPassFilter(double alpha)
+    {
+        if (alpha <= 0 || alpha > 1)
+            throw new IllegalArgumentException("alpha must be in (0, 1]");
+        this.alpha = alpha;
+    }
+
+    public void apply(double[] sample, long nanos)
+    {
+        for (int axis = 0; axis < 3; axis++)
+        {
+            if (primed)
+                value[axis] += alpha * (sample[axis] - value[axis]);
+            else
+                value[axis] = sample[axis];
+            sample[axis] = value[axis];
+        }
+        primed = true;
+    }
+
+    public void reset()
+    {
+        primed = false;
+    }
+}
@@ -0,0 +1,62 @@
+package ca.ubc.cs.wiimote.filter;
+
+/**
+ * Replaces each sample by the median of the last n samples, per axis. Removes single
+ * sample spikes without blurring steps as much as averaging would.
+ */
+public class MedianFilter implements AccelFilter
+{
+    //the last n samples of each axis, as rings sharing head
+    final protected double[][] window;
+    //scratch space for finding the median
+    final protected double[] sorted;
+    protected int head, count;
+
+    public MedianFilter(int n)
+    {
+        if (n < 1)
+            throw new IllegalArgumentException("n must be at least 1");
+        window = new double[3][n];
+        sorted = new double[n];
+    }
+
+    public void apply(double[] sample, long nanos)
+    {
+        int n = sorted.length;
+        for (int axis = 0; axis < 3; axis++)
+            window[axis][head] = sample[axis];
+        head = (head + 1) % n;
+        if (count < n)
+            count++;
+        for (int axis = 0; axis < 3; axis++)
+            sample[axis] = median(window[axis]);
+    }
+
+    /**
+     * Insertion sort of the filled part of the ring; n is small, so this beats anything
+     * cleverer.
+     */
+    protected double median(double[] ring)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            double v = ring[i];
+            int j = i - 1;
+            while (j >= 0 && sorted[j] > v)
+            {
+                sorted[j + 1] = sorted[j];
+                j--;
+            }
+            sorted[j + 1] = v;
+        }
+        if ((count & 1) == 1)
+            return sorted[count / 2];
+        return (sorted[count / 2 - 1] + sorted[count / 2]) / 2;
+    }
+
+    public void reset()
+    {
+        head = 0;
+        count = 0;
+    }
+}
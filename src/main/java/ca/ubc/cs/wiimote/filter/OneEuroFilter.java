@@ -0,0 +1,72 @@
+package ca.ubc.cs.wiimote.filter;
+
+/**
+ * The One Euro filter of Casiez, Roussel and Vogel: a low-pass whose cutoff rises with the speed
+ * of the signal, so it smooths jitter while the wiimote is held still but lags little when
+ * it moves fast. minCutoff (Hz) sets the smoothing at rest, beta how fast the cutoff rises
+ * with speed, and derivativeCutoff (Hz) the smoothing of the speed estimate.
+ */
+public class OneEuroFilter implements AccelFilter
+{
+    final protected double minCutoff, beta, derivativeCutoff;
+    final protected double[] value = new double[3];
+    final protected double[] derivative = new double[3];
+    protected long lastNanos;
+    protected boolean primed;
+
+    public OneEuroFilter(double minCutoff, double beta, double derivativeCutoff)
+    {
+        this.minCutoff = minCutoff;
+        this.beta = beta;
+        this.derivativeCutoff = derivativeCutoff;
+    }
+
+    /**
+     * Creates a filter with a derivative cutoff of 1 Hz, as the authors suggest.
+     */
+    public OneEuroFilter(double minCutoff, double beta)
+    {
+        this(minCutoff, beta, 1.0);
+    }
+
+    public void apply(double[] sample, long nanos)
+    {
+        double dt = (nanos - lastNanos) / 1e9;
+        if (!primed || dt <= 0)
+        {
+            //the first sample, or two samples of one report (interleaved modes)
+            if (!primed)
+                for (int axis = 0; axis < 3; axis++)
+                {
+                    value[axis] = sample[axis];
+                    derivative[axis] = 0;
+                }
+            for (int axis = 0; axis < 3; axis++)
+                sample[axis] = value[axis];
+            lastNanos = nanos;
+            primed = true;
+            return;
+        }
+        lastNanos = nanos;
+        double derivativeAlpha = alpha(derivativeCutoff, dt);
+        for (int axis = 0; axis < 3; axis++)
+        {
+            double d = (sample[axis] - value[axis]) / dt;
+            derivative[axis] += derivativeAlpha * (d - derivative[axis]);
+            double cutoff = minCutoff + beta * Math.abs(derivative[axis]);
+            value[axis] += alpha(cutoff, dt) * (sample[axis] - value[axis]);
+            sample[axis] = value[axis];
+        }
+    }
+
+    protected static double alpha(double cutoff, double dt)
+    {
+        double tau = 1.0 / (2 * Math.PI * cutoff);
+        return 1.0 / (1.0 + tau / dt);
+    }
+
+    public void reset()
+    {
+        primed = false;
+    }
+}